@@ -0,0 +1,255 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.addon.publication.service.ActivityCoalescer;
+import org.exoplatform.addon.publication.service.NavigationUriIndex;
+import org.exoplatform.addon.publication.service.NodeLockManager;
+import org.exoplatform.addon.publication.service.PublicationAuditLog;
+import org.exoplatform.addon.publication.service.PublicationEventDispatcher;
+import org.exoplatform.addon.publication.service.PublicationStateIndex;
+import org.exoplatform.addon.publication.service.PublicationStatistics;
+import org.exoplatform.addon.publication.service.VersionHistoryPruner;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.StandaloneContainer;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cms.CmsService;
+import org.exoplatform.services.cms.jcrext.activity.ActivityCommonService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.listener.ListenerService;
+import org.exoplatform.services.resources.ResourceBundleService;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.wcm.extensions.publication.impl.PublicationManagerImpl;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.Lifecycle;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.State;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.exoplatform.services.wcm.publication.WCMPublicationService;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.picocontainer.Startable;
+
+/**
+ * Standalone eXo container with an in-memory JCR repository and stubbed
+ * portal and ECMS services, shared by the benchmarks of a JVM.
+ */
+public class BenchmarkEnvironment {
+
+  public static final String WORKSPACE = "collaboration";
+  public static final String LIFECYCLE_NAME = "benchmarkLifecycle";
+  public static final String USER_ID = "benchmark";
+
+  private static final String CONTENTS_FOLDER = "benchmark";
+  private static final String PUBLICATION_LIFECYCLE_PROP = "publication:lifecycle";
+
+  private static BenchmarkEnvironment instance;
+
+  private final StandaloneContainer container;
+  private final RepositoryService repositoryService;
+  private final ListenerService listenerService;
+  private final CacheService cacheService;
+  private final ActivityCommonService activityCommonService;
+  private final ResourceBundleService resourceBundleService;
+  /** Services started for each plugin, in start order */
+  private final Map<AuthoringPublicationPlugin, List<Startable>> pluginServices = new IdentityHashMap<AuthoringPublicationPlugin, List<Startable>>();
+
+  private BenchmarkEnvironment() throws Exception {
+    StandaloneContainer.addConfigurationURL(BenchmarkEnvironment.class.getResource("/conf/benchmark/configuration.xml").toString());
+    container = StandaloneContainer.getInstance();
+    ExoContainerContext.setCurrentContainer(container);
+
+    repositoryService = (RepositoryService) container.getComponentInstanceOfType(RepositoryService.class);
+    listenerService = (ListenerService) container.getComponentInstanceOfType(ListenerService.class);
+    cacheService = (CacheService) container.getComponentInstanceOfType(CacheService.class);
+
+    activityCommonService = mock(ActivityCommonService.class);
+    resourceBundleService = mock(ResourceBundleService.class);
+    container.registerComponentInstance(CmsService.class, mock(CmsService.class));
+    container.registerComponentInstance(WCMPublicationService.class, createWCMPublicationService());
+    container.registerComponentInstance(PublicationManagerImpl.class, createPublicationManager());
+
+    Session session = openSession();
+    try {
+      if (!session.getRootNode().hasNode(CONTENTS_FOLDER)) {
+        session.getRootNode().addNode(CONTENTS_FOLDER, "nt:unstructured");
+        session.save();
+      }
+    } finally {
+      session.logout();
+    }
+  }
+
+  public static synchronized BenchmarkEnvironment getInstance() throws Exception {
+    if (instance == null) {
+      instance = new BenchmarkEnvironment();
+    }
+    return instance;
+  }
+
+  /**
+   * Creates a plugin wired to the services of the environment. The background
+   * services started for the plugin are stopped by {@link #stopPlugin}.
+   * 
+   * @param backgroundPruning
+   *          whether obsolete versions are deleted in background
+   * @param userPortalConfigService
+   *          the portal configuration used to compute navigation URIs
+   * @param pluginParams
+   *          the parameters of the plugin, null for the defaults
+   * @return the plugin
+   */
+  public AuthoringPublicationPlugin createPlugin(boolean backgroundPruning, UserPortalConfigService userPortalConfigService, InitParams pluginParams) {
+    ExoContainerContext.setCurrentContainer(container);
+    ConversationState.setCurrent(new ConversationState(new Identity(USER_ID)));
+
+    PublicationEventDispatcher eventDispatcher = new PublicationEventDispatcher(repositoryService, new ExoContainerContext(container), null);
+    VersionHistoryPruner versionHistoryPruner = new VersionHistoryPruner(repositoryService, createParams(VersionHistoryPruner.ENABLED_PARAM,
+        String.valueOf(backgroundPruning)));
+    NavigationUriIndex navigationUriIndex = new NavigationUriIndex(userPortalConfigService, listenerService, cacheService);
+    PublicationStatistics statistics = new PublicationStatistics(null);
+    NodeLockManager nodeLockManager = new NodeLockManager(repositoryService, null);
+    // Not started: audit entries are ignored
+    PublicationAuditLog auditLog = new PublicationAuditLog(repositoryService, new ExoContainerContext(container), null);
+    ActivityCoalescer activityCoalescer = new ActivityCoalescer(listenerService, repositoryService, new ExoContainerContext(container), null);
+    // Disabled by default
+    PublicationStateIndex stateIndex = new PublicationStateIndex(repositoryService, (PublicationManagerImpl) container.getComponentInstanceOfType(PublicationManagerImpl.class),
+        new ExoContainerContext(container), null);
+    List<Startable> services = new ArrayList<Startable>();
+    services.add(eventDispatcher);
+    services.add(versionHistoryPruner);
+    services.add(navigationUriIndex);
+    for (Startable service : services) {
+      service.start();
+    }
+    AuthoringPublicationPlugin plugin = new AuthoringPublicationPlugin(listenerService, activityCommonService, resourceBundleService, cacheService,
+        eventDispatcher, versionHistoryPruner, navigationUriIndex, statistics, nodeLockManager, auditLog, activityCoalescer, stateIndex, pluginParams);
+    synchronized (pluginServices) {
+      pluginServices.put(plugin, services);
+    }
+    return plugin;
+  }
+
+  /**
+   * Stops the background services started for a plugin, so that they don't
+   * run during the next benchmarks of the JVM.
+   * 
+   * @param plugin
+   *          a plugin created by this environment
+   */
+  public void stopPlugin(AuthoringPublicationPlugin plugin) {
+    List<Startable> services;
+    synchronized (pluginServices) {
+      services = pluginServices.remove(plugin);
+    }
+    if (services == null) {
+      return;
+    }
+    for (int i = services.size() - 1; i >= 0; i--) {
+      services.get(i).stop();
+    }
+  }
+
+  public AuthoringPublicationPlugin createPlugin(boolean backgroundPruning, UserPortalConfigService userPortalConfigService) {
+    return createPlugin(backgroundPruning, userPortalConfigService, null);
+  }
+
+  public AuthoringPublicationPlugin createPlugin() {
+    return createPlugin(false, mock(UserPortalConfigService.class));
+  }
+
+  public Session openSession() throws Exception {
+    return repositoryService.getCurrentRepository().getSystemSession(WORKSPACE);
+  }
+
+  /**
+   * Creates a content enrolled in the benchmark lifecycle.
+   * 
+   * @param session
+   *          the session
+   * @param name
+   *          the content name
+   * @param contentSize
+   *          the number of characters of the content text
+   * @return the content node
+   * @throws Exception
+   *           if the node can't be created
+   */
+  public Node createContent(Session session, String name, int contentSize) throws Exception {
+    Node folder = (Node) session.getItem("/" + CONTENTS_FOLDER);
+    Node node = folder.addNode(name, "nt:unstructured");
+    node.addMixin("mix:referenceable");
+    node.setProperty(PUBLICATION_LIFECYCLE_PROP, LIFECYCLE_NAME);
+    node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.ENROLLED);
+    StringBuilder text = new StringBuilder(contentSize);
+    for (int i = 0; i < contentSize; i++) {
+      text.append((char) ('a' + i % 26));
+    }
+    node.setProperty("exo:text", text.toString());
+    session.save();
+    return node;
+  }
+
+  public StandaloneContainer getContainer() {
+    return container;
+  }
+
+  public RepositoryService getRepositoryService() {
+    return repositoryService;
+  }
+
+  public static InitParams createParams(String name, String value) {
+    InitParams params = new InitParams();
+    ValueParam valueParam = new ValueParam();
+    valueParam.setName(name);
+    valueParam.setValue(value);
+    params.addParameter(valueParam);
+    return params;
+  }
+
+  private static WCMPublicationService createWCMPublicationService() throws Exception {
+    WCMPublicationService publicationService = mock(WCMPublicationService.class);
+    when(publicationService.getContentState(any(Node.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        Node node = (Node) invocation.getArguments()[0];
+        return node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE) ? node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString() : null;
+      }
+    });
+    return publicationService;
+  }
+
+  private static PublicationManagerImpl createPublicationManager() {
+    List<State> states = new ArrayList<State>();
+    for (String stateName : new String[] { PublicationDefaultStates.DRAFT, PublicationDefaultStates.PENDING, PublicationDefaultStates.APPROVED,
+        PublicationDefaultStates.STAGED, PublicationDefaultStates.PUBLISHED }) {
+      State state = new State();
+      state.setState(stateName);
+      states.add(state);
+    }
+    Lifecycle lifecycle = new Lifecycle();
+    lifecycle.setName(LIFECYCLE_NAME);
+    lifecycle.setPublicationPlugin(AuthoringPublicationConstant.LIFECYCLE_NAME);
+    lifecycle.setStates(states);
+
+    PublicationManagerImpl publicationManager = mock(PublicationManagerImpl.class);
+    when(publicationManager.getLifecycles()).thenReturn(Collections.singletonList(lifecycle));
+    when(publicationManager.getLifecycle(anyString())).thenReturn(lifecycle);
+    return publicationManager;
+  }
+}
@@ -0,0 +1,86 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a state change of a content to each target state. Before each
+ * invocation, the content is moved to another state, so that every measured
+ * invocation applies a real transition.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ChangeStateBenchmark {
+
+  private static final AtomicInteger CONTENTS_COUNT = new AtomicInteger();
+
+  @Param({ PublicationDefaultStates.DRAFT, PublicationDefaultStates.PENDING, PublicationDefaultStates.APPROVED, PublicationDefaultStates.STAGED,
+      PublicationDefaultStates.PUBLISHED, PublicationDefaultStates.UNPUBLISHED, PublicationDefaultStates.OBSOLETE, PublicationDefaultStates.ARCHIVED })
+  public String targetState;
+
+  @Param({ "1000" })
+  public int contentSize;
+
+  /** Whether publishing an unchanged content keeps its live version */
+  @Param({ "false", "true" })
+  public boolean skipUnchanged;
+
+  private BenchmarkEnvironment environment;
+  private AuthoringPublicationPlugin plugin;
+  private Session session;
+  private Node node;
+  private String previousState;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    environment = BenchmarkEnvironment.getInstance();
+    plugin = environment.createPlugin(false, mock(UserPortalConfigService.class),
+                                      BenchmarkEnvironment.createParams("publish.skip.unchanged", String.valueOf(skipUnchanged)));
+    session = environment.openSession();
+    node = environment.createContent(session, "changeState" + CONTENTS_COUNT.incrementAndGet(), contentSize);
+    previousState = PublicationDefaultStates.DRAFT.equals(targetState) ? PublicationDefaultStates.PENDING : PublicationDefaultStates.DRAFT;
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpInvocation() throws Exception {
+    plugin.changeState(node, previousState, new HashMap<String, String>());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    session.logout();
+    environment.stopPlugin(plugin);
+  }
+
+  @Benchmark
+  public void changeState() throws Exception {
+    plugin.changeState(node, targetState, new HashMap<String, String>());
+  }
+}
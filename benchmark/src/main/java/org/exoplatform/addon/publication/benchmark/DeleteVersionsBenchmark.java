@@ -0,0 +1,81 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the publication of a content which version history has a given
+ * length, with obsolete versions deleted inline or in background.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class DeleteVersionsBenchmark {
+
+  private static final AtomicInteger CONTENTS_COUNT = new AtomicInteger();
+
+  @Param({ "1", "10", "100" })
+  public int historyLength;
+
+  @Param({ "false", "true" })
+  public boolean backgroundPruning;
+
+  private BenchmarkEnvironment environment;
+  private AuthoringPublicationPlugin plugin;
+  private Session session;
+  private Node node;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    environment = BenchmarkEnvironment.getInstance();
+    plugin = environment.createPlugin(backgroundPruning, StubPortal.create(0, 0));
+    session = environment.openSession();
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration() throws Exception {
+    node = environment.createContent(session, "deleteVersions" + CONTENTS_COUNT.incrementAndGet(), 1000);
+    node.addMixin("mix:versionable");
+    session.save();
+    for (int i = 0; i < historyLength; i++) {
+      node.setProperty("exo:title", "version " + i);
+      node.save();
+      node.checkin();
+      node.checkout();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    session.logout();
+    environment.stopPlugin(plugin);
+  }
+
+  @Benchmark
+  public void publish() throws Exception {
+    plugin.changeState(node, PublicationDefaultStates.PUBLISHED, new HashMap<String, String>());
+  }
+}
@@ -0,0 +1,392 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.exoplatform.services.wcm.publication.WCMComposer;
+
+/**
+ * Load test of the publication plugin with concurrent editors and readers.
+ * Each editor repeatedly picks a content, edits it, then submits and publishes
+ * it, while readers get the live or edit view of random contents. Transitions
+ * throughput and latency, conflict retries and the number of stored versions
+ * are reported at a fixed interval.
+ * <p>
+ * Options, given as <code>-name value</code>:
+ * <ul>
+ * <li>editors: number of editor threads, 8 by default</li>
+ * <li>readers: number of reader threads, 4 by default</li>
+ * <li>contents: number of contents shared by the threads, 100 by default</li>
+ * <li>contentSize: number of characters of the contents, 1000 by default</li>
+ * <li>edits: number of edits of a content before it is published, 1 by
+ * default</li>
+ * <li>approve: whether contents go through the approved state, false by
+ * default</li>
+ * <li>liveRatio: ratio of reads in live mode, 0.9 by default</li>
+ * <li>pruning: whether obsolete versions are deleted in background, true by
+ * default</li>
+ * <li>duration: duration of the test in seconds, 60 by default</li>
+ * <li>interval: reporting interval in seconds, 5 by default</li>
+ * </ul>
+ */
+public class EditorialLoadTest {
+
+  private static final int MAX_RETRIES = 3;
+
+  private final Map<String, String> options;
+  private final int editorsCount;
+  private final int readersCount;
+  private final int contentsCount;
+  private final int contentSize;
+  private final int edits;
+  private final boolean approve;
+  private final double liveRatio;
+  private final boolean pruning;
+  private final long duration;
+  private final long interval;
+
+  private final LatencyHistogram transitionLatencies = new LatencyHistogram();
+  private final LatencyHistogram readLatencies = new LatencyHistogram();
+  private final AtomicLong conflictRetries = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private final List<String> contentPaths = new ArrayList<String>();
+  private volatile boolean running = true;
+
+  private EditorialLoadTest(Map<String, String> options) {
+    this.options = options;
+    this.editorsCount = getInt("editors", 8);
+    this.readersCount = getInt("readers", 4);
+    this.contentsCount = getInt("contents", 100);
+    this.contentSize = getInt("contentSize", 1000);
+    this.edits = Math.max(1, getInt("edits", 1));
+    this.approve = Boolean.parseBoolean(getOption("approve", "false"));
+    this.liveRatio = Double.parseDouble(getOption("liveRatio", "0.9"));
+    this.pruning = Boolean.parseBoolean(getOption("pruning", "true"));
+    this.duration = TimeUnit.SECONDS.toMillis(getInt("duration", 60));
+    this.interval = TimeUnit.SECONDS.toMillis(getInt("interval", 5));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      options.put(args[i].replaceFirst("^-+", ""), args[i + 1]);
+    }
+    new EditorialLoadTest(options).run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    BenchmarkEnvironment environment = BenchmarkEnvironment.getInstance();
+    AuthoringPublicationPlugin plugin = environment.createPlugin(pruning, StubPortal.create(0, 0));
+    Session setupSession = environment.openSession();
+    try {
+      long prefix = System.currentTimeMillis();
+      for (int i = 0; i < contentsCount; i++) {
+        Node node = environment.createContent(setupSession, "loadTest" + prefix + "_" + i, contentSize);
+        plugin.changeState(node, PublicationDefaultStates.PUBLISHED, new HashMap<String, String>());
+        contentPaths.add(node.getPath());
+      }
+    } finally {
+      setupSession.logout();
+    }
+
+    System.out.println("Load test with " + editorsCount + " editors and " + readersCount + " readers on " + contentsCount + " contents for "
+        + TimeUnit.MILLISECONDS.toSeconds(duration) + "s");
+    System.out.println("elapsed(s)\ttransitions/s\tp50(ms)\tp99(ms)\treads/s\tread p50(ms)\tread p99(ms)\tretries\tfailures\tversions");
+
+    CountDownLatch finished = new CountDownLatch(editorsCount + readersCount);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < editorsCount; i++) {
+      threads.add(new Thread(new Editor(environment, plugin, i, finished), "editor-" + i));
+    }
+    for (int i = 0; i < readersCount; i++) {
+      threads.add(new Thread(new Reader(environment, plugin, i, finished), "reader-" + i));
+    }
+    long startTime = System.currentTimeMillis();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    Session reportSession = environment.openSession();
+    try {
+      long lastReport = startTime;
+      while (System.currentTimeMillis() - startTime < duration) {
+        Thread.sleep(Math.min(interval, Math.max(1, duration - (System.currentTimeMillis() - startTime))));
+        long now = System.currentTimeMillis();
+        report(reportSession, now - startTime, now - lastReport, transitionLatencies.snapshotAndReset(),
+            readLatencies.snapshotAndReset());
+        lastReport = now;
+      }
+      running = false;
+      finished.await(1, TimeUnit.MINUTES);
+      System.out.println("Total: " + transitionLatencies.getTotalCount() + " transitions, " + readLatencies.getTotalCount() + " reads, "
+          + conflictRetries.get() + " conflict retries, " + failures.get() + " failures, " + countVersions(reportSession) + " versions");
+    } finally {
+      reportSession.logout();
+      environment.stopPlugin(plugin);
+    }
+  }
+
+  private void report(Session session, long elapsed, long period, long[] transitions, long[] reads) throws Exception {
+    double seconds = Math.max(1, period) / 1000d;
+    long transitionsCount = LatencyHistogram.count(transitions);
+    long readsCount = LatencyHistogram.count(reads);
+    System.out.println(String.format("%d\t%.1f\t%.2f\t%.2f\t%.1f\t%.3f\t%.3f\t%d\t%d\t%d", elapsed / 1000, transitionsCount / seconds,
+        LatencyHistogram.percentile(transitions, 0.5) / 1000d, LatencyHistogram.percentile(transitions, 0.99) / 1000d, readsCount / seconds,
+        LatencyHistogram.percentile(reads, 0.5) / 1000d, LatencyHistogram.percentile(reads, 0.99) / 1000d, conflictRetries.get(), failures.get(),
+        countVersions(session)));
+  }
+
+  /**
+   * @return the number of versions stored for the contents, root versions
+   *         excluded
+   */
+  private long countVersions(Session session) throws Exception {
+    session.refresh(false);
+    long versions = 0;
+    for (String path : contentPaths) {
+      Node node = (Node) session.getItem(path);
+      if (node.isNodeType("mix:versionable")) {
+        versions += node.getVersionHistory().getAllVersions().getSize() - 1;
+      }
+    }
+    return versions;
+  }
+
+  private int getInt(String name, int defaultValue) {
+    return Integer.parseInt(getOption(name, String.valueOf(defaultValue)));
+  }
+
+  private String getOption(String name, String defaultValue) {
+    String value = options.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * Runs a transition, retrying it after a concurrent modification.
+   */
+  private void transition(Node node, Transition transition) throws Exception {
+    for (int attempt = 0;; attempt++) {
+      long startTime = System.nanoTime();
+      try {
+        transition.run(node);
+        transitionLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        return;
+      } catch (InvalidItemStateException e) {
+        node.getSession().refresh(false);
+        if (attempt == MAX_RETRIES) {
+          throw e;
+        }
+        conflictRetries.incrementAndGet();
+      }
+    }
+  }
+
+  private interface Transition {
+    void run(Node node) throws Exception;
+  }
+
+  private class Editor implements Runnable {
+    private final BenchmarkEnvironment environment;
+    private final AuthoringPublicationPlugin plugin;
+    private final String userId;
+    private final Random random;
+    private final CountDownLatch finished;
+
+    Editor(BenchmarkEnvironment environment, AuthoringPublicationPlugin plugin, int index, CountDownLatch finished) {
+      this.environment = environment;
+      this.plugin = plugin;
+      this.userId = "editor" + index;
+      this.random = new Random(index);
+      this.finished = finished;
+    }
+
+    public void run() {
+      ExoContainerContext.setCurrentContainer(environment.getContainer());
+      ConversationState.setCurrent(new ConversationState(new Identity(userId)));
+      Session session = null;
+      try {
+        session = environment.openSession();
+        while (running) {
+          Node node = (Node) session.getItem(contentPaths.get(random.nextInt(contentPaths.size())));
+          try {
+            cycle(node);
+          } catch (Exception e) {
+            failures.incrementAndGet();
+            session.refresh(false);
+          }
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        if (session != null) {
+          session.logout();
+        }
+        finished.countDown();
+      }
+    }
+
+    private void cycle(Node node) throws Exception {
+      for (int i = 0; i < edits; i++) {
+        final String text = userId + " " + System.nanoTime();
+        transition(node, new Transition() {
+          public void run(Node editedNode) throws Exception {
+            editedNode.setProperty("exo:title", text);
+            editedNode.save();
+            plugin.updateLifecyleOnChangeContent(editedNode, userId);
+          }
+        });
+      }
+      changeState(node, PublicationDefaultStates.PENDING);
+      if (approve) {
+        changeState(node, PublicationDefaultStates.APPROVED);
+      }
+      changeState(node, PublicationDefaultStates.PUBLISHED);
+    }
+
+    private void changeState(Node node, final String state) throws Exception {
+      transition(node, new Transition() {
+        public void run(Node changedNode) throws Exception {
+          plugin.changeState(changedNode, state, new HashMap<String, String>());
+        }
+      });
+    }
+  }
+
+  private class Reader implements Runnable {
+    private final BenchmarkEnvironment environment;
+    private final AuthoringPublicationPlugin plugin;
+    private final Random random;
+    private final CountDownLatch finished;
+
+    Reader(BenchmarkEnvironment environment, AuthoringPublicationPlugin plugin, int index, CountDownLatch finished) {
+      this.environment = environment;
+      this.plugin = plugin;
+      this.random = new Random(-1 - index);
+      this.finished = finished;
+    }
+
+    public void run() {
+      ExoContainerContext.setCurrentContainer(environment.getContainer());
+      Map<String, Object> liveContext = new HashMap<String, Object>();
+      liveContext.put(WCMComposer.FILTER_MODE, WCMComposer.MODE_LIVE);
+      Map<String, Object> editContext = new HashMap<String, Object>();
+      editContext.put(WCMComposer.FILTER_MODE, WCMComposer.MODE_EDIT);
+      Session session = null;
+      try {
+        session = environment.openSession();
+        while (running) {
+          Node node = (Node) session.getItem(contentPaths.get(random.nextInt(contentPaths.size())));
+          long startTime = System.nanoTime();
+          try {
+            plugin.getNodeView(node, random.nextDouble() < liveRatio ? liveContext : editContext);
+            readLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+          } catch (Exception e) {
+            failures.incrementAndGet();
+            session.refresh(false);
+          }
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        if (session != null) {
+          session.logout();
+        }
+        finished.countDown();
+      }
+    }
+  }
+
+  /**
+   * Thread safe histogram of latencies in microseconds, with 16 buckets per
+   * power of two.
+   */
+  static class LatencyHistogram {
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private volatile AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+
+    void record(long value) {
+      counts.incrementAndGet(index(Math.max(0, value)));
+      totalCount.incrementAndGet();
+    }
+
+    long getTotalCount() {
+      return totalCount.get();
+    }
+
+    /**
+     * @return the counts recorded since the previous call
+     */
+    long[] snapshotAndReset() {
+      AtomicLongArray previousCounts = counts;
+      counts = new AtomicLongArray(BUCKETS);
+      long[] snapshot = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot[i] = previousCounts.get(i);
+      }
+      return snapshot;
+    }
+
+    static long count(long[] snapshot) {
+      long count = 0;
+      for (long bucketCount : snapshot) {
+        count += bucketCount;
+      }
+      return count;
+    }
+
+    static long percentile(long[] snapshot, double percentile) {
+      long count = count(snapshot);
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percentile);
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) {
+          return upperBound(i);
+        }
+      }
+      return upperBound(snapshot.length - 1);
+    }
+
+    private static int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) ((value >>> (magnitude - 4)) & (SUB_BUCKETS - 1));
+      return Math.min(BUCKETS - 1, (magnitude - 3) * SUB_BUCKETS + subBucket);
+    }
+
+    private static long upperBound(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int magnitude = index / SUB_BUCKETS + 3;
+      long subBucket = index % SUB_BUCKETS;
+      return ((SUB_BUCKETS + subBucket + 1) << (magnitude - 4)) - 1;
+    }
+  }
+}
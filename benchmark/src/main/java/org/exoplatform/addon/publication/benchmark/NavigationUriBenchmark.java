@@ -0,0 +1,62 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.portal.config.model.Page;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getListUserNavigationUri against stubbed portals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NavigationUriBenchmark {
+
+  @Param({ "10" })
+  public int portalsCount;
+
+  @Param({ "100", "1000", "10000" })
+  public int nodesPerNavigation;
+
+  private BenchmarkEnvironment environment;
+  private AuthoringPublicationPlugin plugin;
+  private Page page;
+
+  @Setup
+  public void setUp() throws Exception {
+    environment = BenchmarkEnvironment.getInstance();
+    plugin = environment.createPlugin(false, StubPortal.create(portalsCount, nodesPerNavigation));
+    page = mock(Page.class);
+    when(page.getPageId()).thenReturn(StubPortal.getPageId("portal0", nodesPerNavigation / 2));
+  }
+
+  @TearDown
+  public void tearDown() {
+    environment.stopPlugin(plugin);
+  }
+
+  @Benchmark
+  public List<String> getListUserNavigationUri() throws Exception {
+    return plugin.getListUserNavigationUri(page, BenchmarkEnvironment.USER_ID);
+  }
+}
@@ -0,0 +1,72 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.exoplatform.services.wcm.publication.WCMComposer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getNodeView of a content which draft is being edited while a live
+ * version exists.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NodeViewBenchmark {
+
+  private static final AtomicInteger CONTENTS_COUNT = new AtomicInteger();
+
+  @Param({ WCMComposer.MODE_LIVE, WCMComposer.MODE_EDIT })
+  public String mode;
+
+  private BenchmarkEnvironment environment;
+  private AuthoringPublicationPlugin plugin;
+  private Session session;
+  private Node node;
+  private Map<String, Object> context;
+
+  @Setup
+  public void setUp() throws Exception {
+    environment = BenchmarkEnvironment.getInstance();
+    plugin = environment.createPlugin();
+    session = environment.openSession();
+    node = environment.createContent(session, "nodeView" + CONTENTS_COUNT.incrementAndGet(), 1000);
+    plugin.changeState(node, PublicationDefaultStates.PUBLISHED, new HashMap<String, String>());
+    plugin.changeState(node, PublicationDefaultStates.DRAFT, new HashMap<String, String>());
+    context = new HashMap<String, Object>();
+    context.put(WCMComposer.FILTER_MODE, mode);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.logout();
+    environment.stopPlugin(plugin);
+  }
+
+  @Benchmark
+  public Node getNodeView() throws Exception {
+    return plugin.getNodeView(node, context);
+  }
+}
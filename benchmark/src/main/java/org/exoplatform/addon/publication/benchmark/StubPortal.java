@@ -0,0 +1,102 @@
+package org.exoplatform.addon.publication.benchmark;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.exoplatform.portal.config.UserPortalConfig;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.portal.mop.SiteKey;
+import org.exoplatform.portal.mop.navigation.NodeChangeListener;
+import org.exoplatform.portal.mop.navigation.Scope;
+import org.exoplatform.portal.mop.page.PageKey;
+import org.exoplatform.portal.mop.user.UserNavigation;
+import org.exoplatform.portal.mop.user.UserNode;
+import org.exoplatform.portal.mop.user.UserNodeFilterConfig;
+import org.exoplatform.portal.mop.user.UserPortal;
+import org.exoplatform.portal.mop.user.UserPortalContext;
+
+/**
+ * Stubbed portal configuration: a number of portals, each with one navigation
+ * tree of a given size where every node references its own page.
+ */
+public class StubPortal {
+
+  private static final int CHILDREN_PER_NODE = 10;
+
+  private StubPortal() {
+  }
+
+  /**
+   * @return the id of the page referenced by a node of a generated navigation
+   */
+  public static String getPageId(String portalName, int nodeIndex) {
+    return new PageKey(SiteKey.portal(portalName), "page" + nodeIndex).format();
+  }
+
+  /**
+   * Creates a stubbed portal configuration service.
+   * 
+   * @param portalsCount
+   *          number of portals
+   * @param nodesPerNavigation
+   *          number of nodes of each portal navigation
+   * @return the service
+   * @throws Exception
+   *           if stubbing fails
+   */
+  public static UserPortalConfigService create(int portalsCount, int nodesPerNavigation) throws Exception {
+    UserPortalConfigService userPortalConfigService = mock(UserPortalConfigService.class);
+    List<String> portalNames = new ArrayList<String>();
+    for (int i = 0; i < portalsCount; i++) {
+      String portalName = "portal" + i;
+      portalNames.add(portalName);
+
+      SiteKey siteKey = SiteKey.portal(portalName);
+      UserNavigation navigation = mock(UserNavigation.class);
+      when(navigation.getKey()).thenReturn(siteKey);
+      List<UserNavigation> navigations = new ArrayList<UserNavigation>();
+      navigations.add(navigation);
+
+      UserNode root = createTree(portalName, nodesPerNavigation);
+      UserPortal userPortal = mock(UserPortal.class);
+      when(userPortal.getNavigations()).thenReturn(navigations);
+      when(userPortal.getNavigation(siteKey)).thenReturn(navigation);
+      when(userPortal.getNode(eq(navigation), eq(Scope.ALL), (UserNodeFilterConfig) isNull(), (NodeChangeListener<UserNode>) isNull())).thenReturn(root);
+
+      UserPortalConfig userPortalConfig = mock(UserPortalConfig.class);
+      when(userPortalConfig.getUserPortal()).thenReturn(userPortal);
+      when(userPortalConfigService.getUserPortalConfig(eq(portalName), anyString(), any(UserPortalContext.class))).thenReturn(userPortalConfig);
+    }
+    when(userPortalConfigService.getAllPortalNames()).thenReturn(portalNames);
+    return userPortalConfigService;
+  }
+
+  private static UserNode createTree(String portalName, int nodesCount) {
+    List<Collection<UserNode>> children = new ArrayList<Collection<UserNode>>(nodesCount);
+    UserNode root = mock(UserNode.class);
+    Collection<UserNode> rootChildren = new ArrayList<UserNode>();
+    when(root.getChildren()).thenReturn(rootChildren);
+    when(root.getURI()).thenReturn("");
+    for (int i = 0; i < nodesCount; i++) {
+      UserNode node = mock(UserNode.class);
+      Collection<UserNode> nodeChildren = new ArrayList<UserNode>();
+      when(node.getChildren()).thenReturn(nodeChildren);
+      when(node.getPageRef()).thenReturn(new PageKey(SiteKey.portal(portalName), "page" + i));
+      // Attach to a parent so that the tree has CHILDREN_PER_NODE children per node
+      int parentIndex = i / CHILDREN_PER_NODE - 1;
+      String parentURI = parentIndex < 0 ? "" : "node" + parentIndex + "/";
+      when(node.getURI()).thenReturn(parentURI + "node" + i);
+      (parentIndex < 0 ? rootChildren : children.get(parentIndex)).add(node);
+      children.add(nodeChildren);
+    }
+    return root;
+  }
+}
@@ -3,34 +3,49 @@ package org.exoplatform.addon.publication.lifecycle;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.Set;
 
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.ValueFactory;
 import javax.jcr.version.Version;
 import javax.jcr.version.VersionHistory;
-import javax.jcr.version.VersionIterator;
 import javax.portlet.PortletMode;
 
 import org.apache.commons.lang.StringUtils;
+import org.exoplatform.addon.publication.lifecycle.LifecycleStateMachine.CompiledLifecycle;
+import org.exoplatform.addon.publication.lifecycle.LifecycleStateMachine.Transition;
+import org.exoplatform.addon.publication.service.ActivityCoalescer;
+import org.exoplatform.addon.publication.service.NavigationUriIndex;
+import org.exoplatform.addon.publication.service.NodeLockManager;
+import org.exoplatform.addon.publication.service.NodeReference;
+import org.exoplatform.addon.publication.service.PublicationAuditLog;
+import org.exoplatform.addon.publication.service.PublicationEventDispatcher;
+import org.exoplatform.addon.publication.service.PublicationStateIndex;
+import org.exoplatform.addon.publication.service.PublicationStatistics;
+import org.exoplatform.addon.publication.service.PublicationStatistics.Phase;
+import org.exoplatform.addon.publication.service.ServiceParams;
+import org.exoplatform.addon.publication.service.VersionHistoryPruner;
+import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.ecm.webui.utils.Utils;
-import org.exoplatform.portal.application.PortalRequestContext;
-import org.exoplatform.portal.config.UserPortalConfig;
-import org.exoplatform.portal.config.UserPortalConfigService;
 import org.exoplatform.portal.config.model.Page;
-import org.exoplatform.portal.mop.navigation.Scope;
-import org.exoplatform.portal.mop.user.UserNavigation;
-import org.exoplatform.portal.mop.user.UserNode;
-import org.exoplatform.portal.mop.user.UserPortal;
 import org.exoplatform.portal.webui.util.Util;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.cms.CmsService;
 import org.exoplatform.services.cms.jcrext.activity.ActivityCommonService;
 import org.exoplatform.services.listener.ListenerService;
@@ -41,10 +56,7 @@ import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.wcm.extensions.publication.impl.PublicationManagerImpl;
 import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
 import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.ui.UIPublicationContainer;
-import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.Lifecycle;
-import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.State;
 import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
-import org.exoplatform.services.wcm.publication.PublicationUtil;
 import org.exoplatform.services.wcm.publication.WCMComposer;
 import org.exoplatform.services.wcm.publication.WCMPublicationService;
 import org.exoplatform.services.wcm.publication.WebpagePublicationPlugin;
@@ -63,48 +75,250 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
 
   private static final Log LOG = ExoLogger.getLogger(AuthoringPublicationPlugin.class.getName());
   private static final String PUBLICATION_LIFECYCLE_PROP = "publication:lifecycle";
+  private static final String MIX_REFERENCEABLE = "mix:referenceable";
+  private static final String LIVE_REVISION_CACHE_NAME = "publication.noversion.LiveRevisionCache";
+  private static final String LAST_USER_PROP = "publication:lastUser";
+  private static final String TRANSACTIONAL_PUBLISH_PARAM = "publish.transactional";
+  private static final String SKIP_UNCHANGED_PUBLISH_PARAM = "publish.skip.unchanged";
+  private static final String BATCH_CHUNK_SIZE_PARAM = "batch.chunk.size";
 
   private ListenerService listenerService;
   private ActivityCommonService activityService;
   private ResourceBundleService resourceBundleService;
+  private ExoCache<String, LiveRevisionEntry> liveRevisionCache;
+  private PublicationEventDispatcher eventDispatcher;
+  private VersionHistoryPruner versionHistoryPruner;
+  private NavigationUriIndex navigationUriIndex;
+  private PublicationStatistics statistics;
+  private NodeLockManager nodeLockManager;
+  private PublicationAuditLog auditLog;
+  private ActivityCoalescer activityCoalescer;
+  private PublicationStateIndex stateIndex;
+  private boolean transactionalPublish;
+  private boolean skipUnchangedPublish;
+  private int batchChunkSize;
 
   // computed in Getters
   private PublicationManagerImpl publicationManagerImpl;
   private WCMPublicationService wcmPublicationService;
+  private LifecycleStateMachine lifecycleStateMachine;
 
-  public AuthoringPublicationPlugin(ListenerService listenerService, ActivityCommonService activityCommonService, ResourceBundleService resourceBundleService) {
+  public AuthoringPublicationPlugin(ListenerService listenerService, ActivityCommonService activityCommonService, ResourceBundleService resourceBundleService,
+      CacheService cacheService, PublicationEventDispatcher eventDispatcher, VersionHistoryPruner versionHistoryPruner,
+      NavigationUriIndex navigationUriIndex, PublicationStatistics statistics, NodeLockManager nodeLockManager, PublicationAuditLog auditLog,
+      ActivityCoalescer activityCoalescer, PublicationStateIndex stateIndex, InitParams params) {
     this.listenerService = listenerService;
     this.activityService = activityCommonService;
     this.resourceBundleService = resourceBundleService;
+    this.liveRevisionCache = cacheService.getCacheInstance(LIVE_REVISION_CACHE_NAME);
+    this.eventDispatcher = eventDispatcher;
+    this.versionHistoryPruner = versionHistoryPruner;
+    this.navigationUriIndex = navigationUriIndex;
+    this.statistics = statistics;
+    this.nodeLockManager = nodeLockManager;
+    this.auditLog = auditLog;
+    this.activityCoalescer = activityCoalescer;
+    this.stateIndex = stateIndex;
+    this.transactionalPublish = ServiceParams.getBoolean(params, TRANSACTIONAL_PUBLISH_PARAM, false);
+    this.skipUnchangedPublish = ServiceParams.getBoolean(params, SKIP_UNCHANGED_PUBLISH_PARAM, false);
+    this.batchChunkSize = Math.max(1, ServiceParams.getInt(params, BATCH_CHUNK_SIZE_PARAM, 10));
   }
 
   public void changeState(Node node, String newState, HashMap<String, String> context) throws Exception {
+    boolean changed;
+    NodeLockManager.Locks locks = nodeLockManager.lock(Collections.singleton(node));
+    try {
+      changed = applyState(node, newState, context, false);
+    } finally {
+      locks.unlock();
+    }
+    if (changed) {
+      broadcastStateChange(node, newState, context);
+    }
+  }
+
+  /**
+   * Changes the state of a collection of nodes. Nodes are locked, changed and
+   * saved by chunks, so that a large batch doesn't hold the locks of all its
+   * nodes until its end: repository writes of a chunk are grouped and saved
+   * once per session. Listeners are then notified for every node that has been
+   * successfully changed.
+   * <p>
+   * Publications can't be fully grouped: the JCR checkin creating the live
+   * version requires the node to be saved first, and deleting the previous
+   * versions requires detaching and attaching the version history again, each
+   * with its own save. A node published again is thus saved three times before
+   * its checkin, a node published for the first time once.
+   * 
+   * @param nodes
+   *          the nodes to change
+   * @param newState
+   *          the target state
+   * @param context
+   *          the context shared by all transitions
+   * @return the per-node result
+   */
+  public BatchStateChangeResult changeStates(Collection<Node> nodes, String newState, HashMap<String, String> context) {
+    BatchStateChangeResult result = new BatchStateChangeResult();
+    List<Node> savedNodes = new ArrayList<Node>();
+    List<Node> nodeList = new ArrayList<Node>(nodes);
+    for (int i = 0; i < nodeList.size(); i += batchChunkSize) {
+      List<Node> chunk = nodeList.subList(i, Math.min(i + batchChunkSize, nodeList.size()));
+      NodeLockManager.Locks locks;
+      try {
+        locks = nodeLockManager.lock(chunk);
+      } catch (Exception e) {
+        LOG.warn("Can't lock " + chunk.size() + " nodes to change their state to " + newState, e);
+        for (Node node : chunk) {
+          result.addFailure(getPathQuietly(node), e);
+        }
+        continue;
+      }
+      try {
+        applyStates(chunk, newState, context, result, savedNodes);
+      } finally {
+        locks.unlock();
+      }
+    }
+
+    // raise events once all nodes are persisted
+    for (Node node : savedNodes) {
+      String path = getPathQuietly(node);
+      try {
+        broadcastStateChange(node, newState, context);
+        result.addSucceeded(path);
+      } catch (Exception e) {
+        LOG.warn("Error while notifying state change of '" + path + "'", e);
+        result.addFailure(path, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Applies the new state on the nodes and saves them once per session.
+   * 
+   * @param savedNodes
+   *          receives the nodes which changes have been saved
+   */
+  private void applyStates(Collection<Node> nodes, String newState, HashMap<String, String> context, BatchStateChangeResult result, List<Node> savedNodes) {
+    Map<Session, List<Node>> changedNodesBySession = new LinkedHashMap<Session, List<Node>>();
+    for (Node node : nodes) {
+      String path = getPathQuietly(node);
+      try {
+        if (!applyState(node, newState, context, true)) {
+          result.addSucceeded(path);
+          continue;
+        }
+        Session session = node.getSession();
+        List<Node> changedNodes = changedNodesBySession.get(session);
+        if (changedNodes == null) {
+          changedNodes = new ArrayList<Node>();
+          changedNodesBySession.put(session, changedNodes);
+        }
+        changedNodes.add(node);
+      } catch (Exception e) {
+        LOG.warn("Can't change state of '" + path + "' to " + newState, e);
+        result.addFailure(path, e);
+        try {
+          // Discard pending changes of this node only
+          node.refresh(false);
+        } catch (Exception ex) {
+          LOG.debug("Can't discard changes of node '" + path + "'", ex);
+        }
+      }
+    }
+
+    for (Map.Entry<Session, List<Node>> entry : changedNodesBySession.entrySet()) {
+      try {
+        long saveStartTime = statistics.start();
+        entry.getKey().save();
+        statistics.end(Phase.SAVE, saveStartTime);
+        savedNodes.addAll(entry.getValue());
+      } catch (Exception e) {
+        LOG.warn("Can't save state changes of " + entry.getValue().size() + " nodes to " + newState, e);
+        for (Node node : entry.getValue()) {
+          result.addFailure(getPathQuietly(node), e);
+        }
+        try {
+          entry.getKey().refresh(false);
+        } catch (Exception ex) {
+          LOG.debug("Can't discard pending changes of session", ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the new state on the node.
+   * 
+   * @param node
+   *          the node
+   * @param newState
+   *          the new state
+   * @param context
+   *          the context
+   * @param deferSave
+   *          if true, the final save is left to the caller and intermediate
+   *          saves are only done when versioning operations require them
+   * @return false if the node was already published with the same content, in
+   *         which case nothing has been changed
+   * @throws Exception
+   *           the exception
+   */
+  private boolean applyState(Node node, String newState, HashMap<String, String> context, boolean deferSave) throws Exception {
     LOG.info("Change state of'" + node.getPath() + "' to " + newState);
+    CompiledLifecycle lifecycle = getLifecycle(node);
+    if (lifecycle != null && !lifecycle.isAllowed(newState)) {
+      throw new IllegalArgumentException("State " + newState + " isn't part of the lifecycle of '" + node.getPath() + "'");
+    }
+    long transitionStartTime = statistics.start();
+    invalidateLiveRevision(node);
+    Transition transition = lifecycle == null ? LifecycleStateMachine.getTransition(newState) : lifecycle.getTransition(newState);
+
+    ContentFingerprint fingerprint = null;
+    if (transition == Transition.PUBLISH && skipUnchangedPublish) {
+      long fingerprintStartTime = statistics.start();
+      fingerprint = ContentFingerprint.compute(node);
+      statistics.end(Phase.FINGERPRINT, fingerprintStartTime);
+      String liveVersionName = getUnchangedLiveVersionName(node, fingerprint);
+      if (liveVersionName != null) {
+        statistics.addUnchangedPublication();
+        boolean changed = publishUnchanged(node, newState, liveVersionName, deferSave);
+        statistics.end(Phase.TRANSITION, transitionStartTime);
+        return changed;
+      }
+    }
 
     // Add mixin mix:versionable
+    boolean newVersionHistory = false;
     if (node.canAddMixin(Utils.MIX_VERSIONABLE)) {
+      long addMixinStartTime = statistics.start();
       node.addMixin(Utils.MIX_VERSIONABLE);
-      node.save();
+      statistics.end(Phase.ADD_MIXIN, addMixinStartTime);
+      newVersionHistory = true;
+      // Publications save the mixin with the published state, before the checkin
+      if (!deferSave && transition != Transition.PUBLISH) {
+        save(node);
+      }
     }
 
     String versionName = context.get(AuthoringPublicationConstant.CURRENT_REVISION_NAME);
     String logItemName = StringUtils.isEmpty(versionName) ? node.getName() : versionName;
     String userId = getCurrenUserName(node);
 
-    Map<String, VersionData> revisionsMap = getRevisionData(node);
+    RevisionData revisionData = RevisionData.read(node);
 
-    if (PublicationDefaultStates.PENDING.equals(newState) || PublicationDefaultStates.APPROVED.equals(newState) || PublicationDefaultStates.STAGED.equals(newState)
-        || PublicationDefaultStates.ENROLLED.equalsIgnoreCase(newState) || PublicationDefaultStates.UNPUBLISHED.equalsIgnoreCase(newState)
-        || PublicationDefaultStates.OBSOLETE.equalsIgnoreCase(newState)) {
+    if (transition == Transition.CHANGE_STATE) {
       node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, newState);
 
       // add log
-      VersionLog versionLog = new VersionLog(logItemName, newState, userId, GregorianCalendar.getInstance(), getAuthoringPublicationConstant(newState));
+      VersionLog versionLog = new VersionLog(logItemName, newState, userId, GregorianCalendar.getInstance(), LifecycleStateMachine.getLogConstant(newState));
       addLog(node, versionLog);
 
       // add revision data
-      addRevisionData(node, node.getUUID(), revisionsMap, userId, newState);
-    } else if (PublicationDefaultStates.ARCHIVED.equalsIgnoreCase(newState)) {
+      revisionData.update(node.getUUID(), userId, newState);
+    } else if (transition == Transition.ARCHIVE) {
       // change base version to archived state
       node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.ARCHIVED);
       node.setProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP, "");
@@ -114,103 +328,322 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
       addLog(node, versionLog);
 
       // add revision data
-      addRevisionData(node, node.getUUID(), revisionsMap, userId, newState);
-    } else if (PublicationDefaultStates.DRAFT.equalsIgnoreCase(newState)) {
+      revisionData.update(node.getUUID(), userId, newState);
+    } else if (transition == Transition.DRAFT) {
       // change base version to DRAFT state
       node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, newState);
-      node.save();
+      if (!deferSave) {
+        save(node);
+      }
 
-      VersionData editableRevision = revisionsMap.get(node.getUUID());
+      VersionData editableRevision = revisionData.get(node.getUUID());
       if (editableRevision != null) {
-        String lifecycleName = node.getProperty(PUBLICATION_LIFECYCLE_PROP).getString();
-        Lifecycle lifecycle = getPublicationManagerImpl().getLifecycle(lifecycleName);
-        List<State> states = lifecycle.getStates();
-        if (states == null || states.size() <= 0) {
-          editableRevision.setState(PublicationDefaultStates.ENROLLED);
-        } else {
-          editableRevision.setState(states.get(0).getState());
-        }
+        String firstState = lifecycle == null ? null : lifecycle.getFirstState();
+        editableRevision.setState(firstState == null ? PublicationDefaultStates.ENROLLED : firstState);
         editableRevision.setAuthor(userId);
       } else {
         editableRevision = new VersionData(node.getUUID(), PublicationDefaultStates.ENROLLED, userId);
       }
-      revisionsMap.put(node.getUUID(), editableRevision);
-      addRevisionData(node, node.getUUID(), revisionsMap, userId, newState);
+      revisionData.put(editableRevision);
+      revisionData.update(node.getUUID(), userId, newState);
 
       VersionLog versionLog = new VersionLog(node.getBaseVersion().getName(), newState, userId, new GregorianCalendar(), AuthoringPublicationConstant.CHANGE_TO_DRAFT);
       addLog(node, versionLog);
-    } else if (PublicationDefaultStates.PUBLISHED.equals(newState)) {
-      revisionsMap.clear();
+    } else if (transition == Transition.PUBLISH && transactionalPublish) {
+      publishTransactionally(node, revisionData, userId, newState, fingerprint);
+      statistics.end(Phase.TRANSITION, transitionStartTime);
+      return true;
+    } else if (transition == Transition.PUBLISH) {
+      revisionData.clear();
 
       node.setProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP, "");
       node.setProperty(AuthoringPublicationConstant.LIVE_DATE_PROP, new GregorianCalendar());
       node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.PUBLISHED);
-      node.save();
+      save(node);
       node.refresh(false);
 
-      deleteVersions(node);
+      // A new version history has no version to delete
+      if (!newVersionHistory) {
+        long deleteVersionsStartTime = statistics.start();
+        deleteVersions(node);
+        statistics.end(Phase.DELETE_VERSIONS, deleteVersionsStartTime);
+      }
 
       // Make a version and copy the current published content
+      long checkinStartTime = statistics.start();
       if (!node.isCheckedOut()) {
         node.checkout();
       }
       Version liveVersion = node.checkin();
       node.checkout();
+      statistics.end(Phase.CHECKIN, checkinStartTime);
       node.refresh(false);
 
       // add Version revision data
-      addRevisionData(node, liveVersion.getUUID(), revisionsMap, userId, newState);
+      revisionData.update(liveVersion.getUUID(), userId, newState);
 
       node.setProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP, liveVersion.getUUID());
-      node.save();
+      ContentFingerprint.setLiveFingerprint(node, fingerprint);
+      if (!deferSave) {
+        save(node);
+      }
 
       // Add log entry
-      VersionLog versionLog = new VersionLog(liveVersion.getName(), newState, userId, new GregorianCalendar(), getAuthoringPublicationConstant(newState));
+      VersionLog versionLog = new VersionLog(liveVersion.getName(), newState, userId, new GregorianCalendar(), LifecycleStateMachine.getLogConstant(newState));
       addLog(node, versionLog);
 
       // add revision data
-      addRevisionData(node, node.getUUID(), revisionsMap, userId, newState);
+      revisionData.update(node.getUUID(), userId, newState);
+    }
+
+    long revisionDataStartTime = statistics.start();
+    statistics.addRevisionDataBytes(revisionData.write(node));
+    statistics.end(Phase.REVISION_DATA, revisionDataStartTime);
+    node.setProperty(LAST_USER_PROP, userId);
+    if (!deferSave && !node.isNew()) {
+      save(node);
+    }
+    statistics.end(Phase.TRANSITION, transitionStartTime);
+    return true;
+  }
+
+  /**
+   * @param node
+   *          the node
+   * @param fingerprint
+   *          the fingerprint of the current content of the node
+   * @return the name of the live version if it exists and has the same
+   *         content as the node, else null
+   * @throws RepositoryException
+   *           the exception
+   */
+  private String getUnchangedLiveVersionName(Node node, ContentFingerprint fingerprint) throws RepositoryException {
+    if (!fingerprint.getValue().equals(ContentFingerprint.getLiveFingerprint(node)) || !node.hasProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP)) {
+      return null;
+    }
+    String liveRevision = node.getProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP).getString();
+    if (StringUtils.isEmpty(liveRevision)) {
+      return null;
+    }
+    try {
+      return node.getSession().getNodeByUUID(liveRevision).getName();
+    } catch (ItemNotFoundException e) {
+      return null;
     }
+  }
+
+  /**
+   * Publishes a node which content didn't change since its live version: the
+   * live version is kept and only the publication metadata are updated.
+   * 
+   * @param node
+   *          the node
+   * @param newState
+   *          the published state
+   * @param liveVersionName
+   *          the name of the live version
+   * @param deferSave
+   *          if true, the save is left to the caller
+   * @return false if the node was already published, in which case nothing
+   *         has been changed
+   * @throws Exception
+   *           the exception
+   */
+  private boolean publishUnchanged(Node node, String newState, String liveVersionName, boolean deferSave) throws Exception {
+    if (node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE)
+        && PublicationDefaultStates.PUBLISHED.equals(node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString())) {
+      return false;
+    }
+    String userId = getCurrenUserName(node);
+    RevisionData revisionData = RevisionData.read(node);
+    node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.PUBLISHED);
+    revisionData.update(node.getUUID(), userId, newState);
+    addLog(node, new VersionLog(liveVersionName, newState, userId, new GregorianCalendar(), LifecycleStateMachine.getLogConstant(newState)));
+
+    long revisionDataStartTime = statistics.start();
+    statistics.addRevisionDataBytes(revisionData.write(node));
+    statistics.end(Phase.REVISION_DATA, revisionDataStartTime);
+    node.setProperty(LAST_USER_PROP, userId);
+    if (!deferSave) {
+      save(node);
+    }
+    return true;
+  }
 
-    node.setProperty("publication:lastUser", userId);
-    if (!node.isNew()) {
+  /**
+   * Publishes the node with one save before and one save after the creation of
+   * the live version. Old versions are pruned only once the publication is
+   * committed. If any step fails, pending changes are discarded and the
+   * previous publication state is restored, so the node keeps its previous
+   * live version.
+   * 
+   * @param node
+   *          the node
+   * @param revisionData
+   *          the revision data of the node
+   * @param userId
+   *          the user publishing the node
+   * @param newState
+   *          the published state
+   * @param fingerprint
+   *          the fingerprint of the published content, null if not computed
+   * @throws Exception
+   *           the exception
+   */
+  private void publishTransactionally(Node node, RevisionData revisionData, String userId, String newState, ContentFingerprint fingerprint) throws Exception {
+    String previousState = node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE) ? node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString()
+                                                                                        : null;
+    Calendar previousLiveDate = node.hasProperty(AuthoringPublicationConstant.LIVE_DATE_PROP) ? node.getProperty(AuthoringPublicationConstant.LIVE_DATE_PROP)
+                                                                                                    .getDate() : null;
+    Version liveVersion = null;
+    try {
+      // Stage the published state to copy it in the live version
+      node.setProperty(AuthoringPublicationConstant.LIVE_DATE_PROP, new GregorianCalendar());
+      node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.PUBLISHED);
+      save(node);
+
+      long checkinStartTime = statistics.start();
+      if (!node.isCheckedOut()) {
+        node.checkout();
+      }
+      liveVersion = node.checkin();
+      node.checkout();
+      statistics.end(Phase.CHECKIN, checkinStartTime);
+
+      revisionData.clear();
+      revisionData.update(liveVersion.getUUID(), userId, newState);
+      revisionData.update(node.getUUID(), userId, newState);
+      long revisionDataStartTime = statistics.start();
+      statistics.addRevisionDataBytes(revisionData.write(node));
+      statistics.end(Phase.REVISION_DATA, revisionDataStartTime);
+      node.setProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP, liveVersion.getUUID());
+      ContentFingerprint.setLiveFingerprint(node, fingerprint);
+      addLog(node, new VersionLog(liveVersion.getName(), newState, userId, new GregorianCalendar(), LifecycleStateMachine.getLogConstant(newState)));
+      node.setProperty(LAST_USER_PROP, userId);
+      save(node);
+    } catch (Exception e) {
+      rollbackPublication(node, previousState, previousLiveDate, liveVersion);
+      throw e;
+    }
+
+    // Committed: old versions, including the previous live one, are obsolete
+    Set<String> keptVersions = Collections.singleton(liveVersion.getUUID());
+    VersionHistory versionHistory = node.getVersionHistory();
+    long deleteVersionsStartTime = statistics.start();
+    if (versionHistoryPruner.isEnabled()) {
+      try {
+        versionHistoryPruner.schedule(node.getSession().getWorkspace().getName(), versionHistory.getUUID(), keptVersions);
+      } catch (RepositoryException e) {
+        // The history is still attached, its old versions will be deleted by the next publication or purge
+        LOG.warn("Can't schedule pruning of the version history of '" + node.getPath() + "'", e);
+      }
+    } else {
+      statistics.addVersionsRemoved(Math.max(0, versionHistoryPruner.removeVersions(versionHistory, keptVersions, Integer.MAX_VALUE)));
+    }
+    statistics.end(Phase.DELETE_VERSIONS, deleteVersionsStartTime);
+  }
+
+  private void rollbackPublication(Node node, String previousState, Calendar previousLiveDate, Version liveVersion) {
+    try {
+      node.refresh(false);
+      if (node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE) || previousState != null) {
+        node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, previousState);
+      }
+      if (node.hasProperty(AuthoringPublicationConstant.LIVE_DATE_PROP) || previousLiveDate != null) {
+        node.setProperty(AuthoringPublicationConstant.LIVE_DATE_PROP, previousLiveDate);
+      }
+      if (!node.isCheckedOut()) {
+        node.checkout();
+      }
       node.save();
+      if (liveVersion != null) {
+        LOG.warn("Publication of '" + node.getPath() + "' rolled back, version '" + liveVersion.getName() + "' will be deleted by the next publication");
+      }
+    } catch (Exception e) {
+      LOG.error("Can't roll back publication of '" + getPathQuietly(node) + "'", e);
+    }
+  }
+
+  private void save(Node node) throws RepositoryException {
+    long startTime = statistics.start();
+    node.save();
+    statistics.end(Phase.SAVE, startTime);
+  }
+
+  /**
+   * Notifies listeners that the state of the node has changed.
+   * 
+   * @param node
+   *          the node
+   * @param newState
+   *          the new state
+   * @param context
+   *          the context
+   * @throws Exception
+   *           the exception
+   */
+  private void broadcastStateChange(Node node, final String newState, HashMap<String, String> context) throws Exception {
+    // Changes are persisted, drop what may have been cached in the meantime
+    invalidateLiveRevision(node);
+    appendAuditEntry(node);
+    try {
+      stateIndex.update(node);
+    } catch (Exception e) {
+      LOG.warn("Can't update publication state index of '" + getPathQuietly(node) + "'", e);
     }
+
+    final boolean initialPhase = "true".equalsIgnoreCase(context.get(AuthoringPublicationConstant.IS_INITIAL_PHASE));
+    eventDispatcher.dispatch(node, new PublicationEventDispatcher.EventTask() {
+      public void broadcast(Node changedNode) throws Exception {
+        broadcastStateChangeEvents(changedNode, newState, initialPhase);
+      }
+    });
+  }
+
+  /**
+   * Appends the log entry written by {@link #addLog(Node, VersionLog)} to the
+   * audit log, which keeps the entries overwritten by the next transitions.
+   * 
+   * @param node
+   *          the node
+   */
+  private void appendAuditEntry(Node node) {
+    try {
+      if (node.hasProperty(AuthoringPublicationConstant.HISTORY)) {
+        Value[] values = node.getProperty(AuthoringPublicationConstant.HISTORY).getValues();
+        if (values.length > 0) {
+          auditLog.append(NodeReference.of(node), values[values.length - 1].getString());
+        }
+      }
+    } catch (Exception e) {
+      LOG.warn("Can't add audit entry of '" + getPathQuietly(node) + "'", e);
+    }
+  }
+
+  private void broadcastStateChangeEvents(Node node, String newState, boolean initialPhase) throws Exception {
+    long startTime = statistics.start();
     // raise event to notify that state is changed
     if (!PublicationDefaultStates.ENROLLED.equalsIgnoreCase(newState)) {
       CmsService cmsService = WCMCoreUtils.getService(CmsService.class);
-      if ("true".equalsIgnoreCase(context.get(AuthoringPublicationConstant.IS_INITIAL_PHASE))) {
+      if (initialPhase) {
         listenerService.broadcast(AuthoringPublicationConstant.POST_INIT_STATE_EVENT, cmsService, node);
       } else {
         listenerService.broadcast(AuthoringPublicationConstant.POST_CHANGE_STATE_EVENT, cmsService, node);
         if (activityService.isAcceptedNode(node)) {
-          listenerService.broadcast(ActivityCommonService.STATE_CHANGED_ACTIVITY, node, newState);
+          activityCoalescer.stateChanged(node, newState);
         }
       }
     }
     listenerService.broadcast(AuthoringPublicationConstant.POST_UPDATE_STATE_EVENT, null, node);
+    statistics.end(Phase.LISTENERS, startTime);
   }
 
-  /**
-   * Gets the revision data.
-   * 
-   * @param node
-   *          the node
-   * @return the revision data
-   * @throws Exception
-   *           the exception
-   */
-  private Map<String, VersionData> getRevisionData(Node node) throws Exception {
-    Map<String, VersionData> map = new HashMap<String, VersionData>();
+  private String getPathQuietly(Node node) {
     try {
-      for (Value v : node.getProperty(AuthoringPublicationConstant.REVISION_DATA_PROP).getValues()) {
-        VersionData versionData = VersionData.toVersionData(v.getString());
-        map.put(versionData.getUUID(), versionData);
-      }
-    } catch (Exception e) {
-      return map;
+      return node.getPath();
+    } catch (RepositoryException e) {
+      return String.valueOf(node);
     }
-    return map;
   }
 
   private String getCurrenUserName(Node node) throws RepositoryException {
@@ -229,38 +662,28 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
   }
 
   private void deleteVersions(Node node) throws Exception {
-    // Delete version History
-    List<Version> toDeleteVersions = new ArrayList<Version>();
     VersionHistory versionHistory = node.getVersionHistory();
-    if (versionHistory != null) {
-      VersionIterator versionIterator = versionHistory.getAllVersions();
-      while (versionIterator.hasNext()) {
-        Version version = versionIterator.nextVersion();
-        if (version != null && !version.getPath().equals(node.getPath()) && !version.getName().equals("jcr:rootVersion")) {
-          toDeleteVersions.add(0, version);
-        }
-      }
+    Set<String> keptVersions = Collections.emptySet();
+    boolean pruneLater = versionHistory != null && versionHistoryPruner.isEnabled();
+    if (pruneLater) {
+      // Old versions are deleted later, off the publication request. The
+      // request is saved first: once detached, nothing references the history
+      versionHistoryPruner.schedule(node.getSession().getWorkspace().getName(), versionHistory.getUUID(), keptVersions);
     }
 
+    // Detach the node from its version history
     node.removeMixin("mix:versionable");
-    node.save();
+    save(node);
     node.refresh(false);
 
-    for (Version version : toDeleteVersions) {
-      try {
-        // Delete version declaration from root node
-        versionHistory.removeVersion(version.getName());
-      } catch (Exception e) {
-        if (LOG.isDebugEnabled()) {
-          LOG.warn("Can't delete version:" + version.getName(), e);
-        }
-      }
+    if (versionHistory != null && !pruneLater) {
+      statistics.addVersionsRemoved(Math.max(0, versionHistoryPruner.removeVersions(versionHistory, keptVersions, Integer.MAX_VALUE)));
     }
 
     // Add mixin mix:versionable
     node.addMixin(Utils.MIX_VERSIONABLE);
 
-    node.save();
+    save(node);
     node.refresh(false);
   }
 
@@ -317,69 +740,31 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
   }
 
   /**
-   * Adds the revision data.
+   * Gets the first state of the lifecycle of the node.
    * 
    * @param node
    *          the node
-   * @param revisionsMap
-   *          the list
+   * @return the first state, or null if the lifecycle has no state
    * @throws Exception
    *           the exception
    */
-  private void addRevisionData(Node node, String uuid, Map<String, VersionData> revisionsMap, String userId, String newState) throws Exception {
-    VersionData versionData = revisionsMap.get(uuid);
-    if (versionData != null) {
-      versionData.setAuthor(userId);
-      versionData.setState(newState);
-    } else {
-      versionData = new VersionData(uuid, newState, userId);
-    }
-    revisionsMap.put(uuid, versionData);
-    addRevisionData(node, revisionsMap);
+  private String getFirstState(Node node) throws Exception {
+    CompiledLifecycle lifecycle = getLifecycle(node);
+    return lifecycle == null ? null : lifecycle.getFirstState();
   }
 
   /**
-   * Adds the revision data.
-   * 
    * @param node
    *          the node
-   * @param revisionsMap
-   *          the list
-   * @throws Exception
+   * @return the compiled lifecycle of the node, or null if it has none
+   * @throws RepositoryException
    *           the exception
    */
-  private void addRevisionData(Node node, Map<String, VersionData> revisionsMap) throws Exception {
-    List<Value> valueList = new ArrayList<Value>();
-    ValueFactory factory = node.getSession().getValueFactory();
-
-    for (VersionData tmpVersionData : revisionsMap.values()) {
-      valueList.add(factory.createValue(tmpVersionData.toStringValue()));
-    }
-    node.setProperty(AuthoringPublicationConstant.REVISION_DATA_PROP, valueList.toArray(new Value[] {}));
-  }
-
-  private String getAuthoringPublicationConstant(String newState) {
-    if (PublicationDefaultStates.APPROVED.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_APPROVED;
-    } else if (PublicationDefaultStates.ARCHIVED.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_ARCHIVED;
-    } else if (PublicationDefaultStates.DRAFT.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_DRAFT;
-    } else if (PublicationDefaultStates.ENROLLED.equals(newState)) {
-      return AuthoringPublicationConstant.ENROLLED_TO_LIFECYCLE;
-    } else if (PublicationDefaultStates.OBSOLETE.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_OBSOLETED;
-    } else if (PublicationDefaultStates.PENDING.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_PENDING;
-    } else if (PublicationDefaultStates.PUBLISHED.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_LIVE;
-    } else if (PublicationDefaultStates.STAGED.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_STAGED;
-    } else if (PublicationDefaultStates.UNPUBLISHED.equals(newState)) {
-      return AuthoringPublicationConstant.CHANGE_TO_UNPUBLISHED;
-    } else {
+  private CompiledLifecycle getLifecycle(Node node) throws RepositoryException {
+    if (!node.hasProperty(PUBLICATION_LIFECYCLE_PROP)) {
       return null;
     }
+    return getLifecycleStateMachine().getLifecycle(node.getProperty(PUBLICATION_LIFECYCLE_PROP).getString());
   }
 
   /**
@@ -389,10 +774,9 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
   public void updateLifecyleOnChangeContent(Node node, String remoteUser, String newState) throws Exception {
     String state = node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString();
     if (newState == null) {
-      Lifecycle lifecycle = getPublicationManagerImpl().getLifecycle(node.getProperty(PUBLICATION_LIFECYCLE_PROP).getString());
-      List<State> states = lifecycle.getStates();
-      if (states != null && states.size() > 0) {
-        newState = states.get(0).getState();
+      String firstState = getFirstState(node);
+      if (firstState != null) {
+        newState = firstState;
       }
     }
     if (state.equals(newState)) {
@@ -409,26 +793,119 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
    * javax.jcr.Node, java.util.Map)
    */
   public Node getNodeView(Node node, Map<String, Object> context) throws Exception {
+    long startTime = statistics.start();
+    boolean editMode = isEditMode(context);
+    try {
+      return getNodeView(node, context, editMode);
+    } finally {
+      statistics.end(editMode ? Phase.NODE_VIEW_EDIT : Phase.NODE_VIEW_LIVE, startTime);
+    }
+  }
+
+  private Node getNodeView(Node node, Map<String, Object> context, boolean editMode) throws Exception {
+    String cacheKey = getLiveRevisionCacheKey(node);
+    LiveRevisionEntry liveRevisionEntry = cacheKey == null ? null : liveRevisionCache.get(cacheKey);
+    if (liveRevisionEntry == null) {
+      liveRevisionEntry = resolveLiveRevision(node);
+      if (cacheKey != null) {
+        liveRevisionCache.put(cacheKey, liveRevisionEntry);
+      }
+    }
 
     // don't display content if state is enrolled or unpublished
-    String currentState = getWcmPublicationService().getContentState(node);
+    String currentState = liveRevisionEntry.getState();
     if (PublicationDefaultStates.ENROLLED.equals(currentState) || PublicationDefaultStates.UNPUBLISHED.equals(currentState))
       return null;
 
     // if current mode is edit mode
-    if (context == null || PublicationDefaultStates.UNPUBLISHED.equals(currentState) || WCMComposer.MODE_EDIT.equals(context.get(WCMComposer.FILTER_MODE))
-        || PortletMode.EDIT.toString().equals(context.get(WCMComposer.PORTLET_MODE)))
+    if (editMode || PublicationDefaultStates.UNPUBLISHED.equals(currentState))
       return node;
 
     // if current mode is live mode
-    Node liveNode = getLiveRevision(node);
-    if (liveNode != null) {
-      if (liveNode.hasNode("jcr:frozenNode")) {
-        return liveNode.getNode("jcr:frozenNode");
+    String livePath = liveRevisionEntry.getLivePath();
+    if (livePath == null) {
+      return null;
+    } else if (LiveRevisionEntry.SELF.equals(livePath)) {
+      return node;
+    }
+    try {
+      return (Node) node.getSession().getItem(livePath);
+    } catch (PathNotFoundException e) {
+      // Live version has been removed since it was cached
+      if (cacheKey != null) {
+        liveRevisionCache.remove(cacheKey);
       }
+      return getLiveNodeView(getLiveRevision(node), node);
+    }
+  }
+
+  private boolean isEditMode(Map<String, Object> context) {
+    return context == null || WCMComposer.MODE_EDIT.equals(context.get(WCMComposer.FILTER_MODE))
+        || PortletMode.EDIT.toString().equals(context.get(WCMComposer.PORTLET_MODE));
+  }
+
+  /**
+   * Resolves the publication state and the live revision of the node from the
+   * repository.
+   * 
+   * @param node
+   *          the node
+   * @return the resolved entry
+   * @throws Exception
+   *           the exception
+   */
+  private LiveRevisionEntry resolveLiveRevision(Node node) throws Exception {
+    String currentState = getWcmPublicationService().getContentState(node);
+    Node liveNodeView = getLiveNodeView(getLiveRevision(node), node);
+    if (liveNodeView == null) {
+      return new LiveRevisionEntry(currentState, null);
+    } else if (liveNodeView == node) {
+      return new LiveRevisionEntry(currentState, LiveRevisionEntry.SELF);
+    }
+    return new LiveRevisionEntry(currentState, liveNodeView.getPath());
+  }
+
+  private Node getLiveNodeView(Node liveNode, Node node) throws RepositoryException {
+    if (liveNode == null || liveNode == node) {
       return liveNode;
     }
-    return null;
+    if (liveNode.hasNode("jcr:frozenNode")) {
+      return liveNode.getNode("jcr:frozenNode");
+    }
+    return liveNode;
+  }
+
+  private String getLiveRevisionCacheKey(Node node) {
+    try {
+      if (!node.isNodeType(MIX_REFERENCEABLE)) {
+        return null;
+      }
+      return node.getSession().getWorkspace().getName() + ":" + node.getUUID();
+    } catch (RepositoryException e) {
+      return null;
+    }
+  }
+
+  private void invalidateLiveRevision(Node node) {
+    String cacheKey = getLiveRevisionCacheKey(node);
+    if (cacheKey != null) {
+      liveRevisionCache.remove(cacheKey);
+    }
+  }
+
+  /**
+   * @return the number of getNodeView calls served from the live revision cache
+   */
+  public int getLiveRevisionCacheHits() {
+    return liveRevisionCache.getCacheHit();
+  }
+
+  /**
+   * @return the number of getNodeView calls that had to resolve the live
+   *         revision from the repository
+   */
+  public int getLiveRevisionCacheMisses() {
+    return liveRevisionCache.getCacheMiss();
   }
 
   @Override
@@ -441,25 +918,7 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
 
   @Override
   public List<String> getListUserNavigationUri(Page page, String remoteUser) throws Exception {
-    UserPortalConfigService userPortalConfigService = WCMCoreUtils.getService(UserPortalConfigService.class);
-
-    List<String> listPageNavigationUri = new ArrayList<String>();
-    List<String> listPortalName = userPortalConfigService.getAllPortalNames();
-    for (String portalName : listPortalName) {
-      UserPortalConfig userPortalCfg = userPortalConfigService.getUserPortalConfig(portalName, remoteUser, PortalRequestContext.USER_PORTAL_CONTEXT);
-      UserPortal userPortal = userPortalCfg.getUserPortal();
-
-      // get nodes
-      List<UserNavigation> navigationList = userPortal.getNavigations();
-      for (UserNavigation nav : navigationList) {
-        UserNode root = userPortal.getNode(nav, Scope.ALL, null, null);
-        List<UserNode> userNodeList = PublicationUtil.findUserNodeByPageId(root, page.getPageId());
-        for (UserNode node : userNodeList) {
-          listPageNavigationUri.add(PublicationUtil.setMixedNavigationUri(portalName, node.getURI()));
-        }
-      }
-    }
-    return listPageNavigationUri;
+    return navigationUriIndex.getNavigationUris(page.getPageId(), remoteUser);
   }
 
   @Override
@@ -495,6 +954,25 @@ public class AuthoringPublicationPlugin extends WebpagePublicationPlugin {
     return publicationManagerImpl;
   }
 
+  /**
+   * @return the compiled lifecycles, compiled again when a lifecycle is
+   *         replaced, or with {@link #refreshLifecycles()} when a lifecycle
+   *         configuration is modified in place
+   */
+  private LifecycleStateMachine getLifecycleStateMachine() {
+    if (lifecycleStateMachine == null) {
+      lifecycleStateMachine = new LifecycleStateMachine(getPublicationManagerImpl());
+    }
+    return lifecycleStateMachine;
+  }
+
+  /**
+   * Compiles again the lifecycles configuration on next use.
+   */
+  public void refreshLifecycles() {
+    getLifecycleStateMachine().refresh();
+  }
+
   public WCMPublicationService getWcmPublicationService() {
     if (wcmPublicationService == null) {
       wcmPublicationService = WCMCoreUtils.getService(WCMPublicationService.class);
@@ -0,0 +1,37 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a batch state change: the paths of nodes that have been changed
+ * and the failure cause of the others.
+ */
+public class BatchStateChangeResult {
+
+  private List<String> succeeded = new ArrayList<String>();
+  private Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+
+  void addSucceeded(String path) {
+    succeeded.add(path);
+  }
+
+  void addFailure(String path, Exception exception) {
+    failures.put(path, exception);
+  }
+
+  public List<String> getSucceeded() {
+    return Collections.unmodifiableList(succeeded);
+  }
+
+  public Map<String, Exception> getFailures() {
+    return Collections.unmodifiableMap(failures);
+  }
+
+  public boolean isSuccessful() {
+    return failures.isEmpty();
+  }
+}
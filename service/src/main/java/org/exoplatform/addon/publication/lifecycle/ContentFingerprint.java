@@ -0,0 +1,221 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+
+/**
+ * Digest of the content of a node and its descendants, used to detect that a
+ * node hasn't changed since its live version. Publication, versioning and
+ * modification metadata are left out, binaries are read as streams.
+ */
+class ContentFingerprint {
+
+  /** Mixin holding the fingerprint of the live version */
+  static final String FINGERPRINT_MIXIN = "publication:noversionFingerprint";
+
+  static final String LIVE_FINGERPRINT_PROP = "publication:liveFingerprint";
+
+  private static final String DIGEST_ALGORITHM = "SHA-1";
+  private static final String PUBLICATION_PREFIX = "publication:";
+  private static final String JCR_PREFIX = "jcr:";
+  private static final int BUFFER_SIZE = 8192;
+
+  /** Properties of the jcr namespace that are part of the content */
+  private static final Set<String> JCR_CONTENT_PROPERTIES = new HashSet<String>(Arrays.asList("jcr:data", "jcr:mimeType", "jcr:encoding",
+                                                                                                  "jcr:primaryType"));
+
+  /** Properties updated on save even if the content doesn't change */
+  private static final Set<String> MODIFICATION_PROPERTIES = new HashSet<String>(Arrays.asList("jcr:lastModified", "exo:lastModifiedDate",
+                                                                                                   "exo:dateModified", "exo:lastModifier"));
+
+  private final String value;
+
+  private ContentFingerprint(String value) {
+    this.value = value;
+  }
+
+  /**
+   * @return the hexadecimal digest of the content
+   */
+  String getValue() {
+    return value;
+  }
+
+  /**
+   * Computes the fingerprint of the content of a node, reading all its
+   * binaries.
+   *
+   * @param node
+   *          the node
+   * @return the fingerprint
+   * @throws RepositoryException
+   *           if the content can't be read
+   */
+  static ContentFingerprint compute(Node node) throws RepositoryException {
+    MessageDigest digest = newDigest();
+    update(digest, node);
+    return new ContentFingerprint(toHex(digest.digest()));
+  }
+
+  /**
+   * @param node
+   *          the node
+   * @return the fingerprint of the live version of the node, null if unknown
+   * @throws RepositoryException
+   *           if the property can't be read
+   */
+  static String getLiveFingerprint(Node node) throws RepositoryException {
+    return getString(node, LIVE_FINGERPRINT_PROP);
+  }
+
+  /**
+   * Stores the fingerprint of the live version, the change has to be saved by
+   * the caller.
+   *
+   * @param node
+   *          the node
+   * @param fingerprint
+   *          the fingerprint, null if unknown: the fingerprint of the previous
+   *          live version is then removed
+   * @throws RepositoryException
+   *           if the properties can't be set
+   */
+  static void setLiveFingerprint(Node node, ContentFingerprint fingerprint) throws RepositoryException {
+    if (fingerprint == null) {
+      // A stale fingerprint would let a later publication of this content be skipped
+      if (node.isNodeType(FINGERPRINT_MIXIN)) {
+        node.removeMixin(FINGERPRINT_MIXIN);
+      } else if (node.hasProperty(LIVE_FINGERPRINT_PROP)) {
+        node.getProperty(LIVE_FINGERPRINT_PROP).remove();
+      }
+      return;
+    }
+    if (!node.isNodeType(FINGERPRINT_MIXIN)) {
+      try {
+        if (!node.canAddMixin(FINGERPRINT_MIXIN)) {
+          return;
+        }
+      } catch (NoSuchNodeTypeException e) {
+        // Node types of the extension aren't registered in this repository
+        return;
+      }
+      node.addMixin(FINGERPRINT_MIXIN);
+    }
+    node.setProperty(LIVE_FINGERPRINT_PROP, fingerprint.value);
+  }
+
+  private static String getString(Node node, String name) throws RepositoryException {
+    return node.hasProperty(name) ? node.getProperty(name).getString() : null;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  private static void update(MessageDigest digest, Node node) throws RepositoryException {
+    List<String> names = new ArrayList<String>();
+    PropertyIterator properties = node.getProperties();
+    while (properties.hasNext()) {
+      String name = properties.nextProperty().getName();
+      if (isContent(name)) {
+        names.add(name);
+      }
+    }
+    // Iteration order of properties isn't specified
+    Collections.sort(names);
+    for (String name : names) {
+      Property property = node.getProperty(name);
+      updateString(digest, name);
+      if (property.getDefinition().isMultiple()) {
+        Value[] values = property.getValues();
+        updateString(digest, String.valueOf(values.length));
+        for (Value value : values) {
+          updateValue(digest, value);
+        }
+      } else {
+        updateValue(digest, property.getValue());
+      }
+    }
+
+    // Child nodes are orderable, their order is part of the content
+    NodeIterator children = node.getNodes();
+    while (children.hasNext()) {
+      Node child = children.nextNode();
+      updateString(digest, "/" + child.getName() + "[" + child.getIndex() + "]");
+      update(digest, child);
+    }
+  }
+
+  private static boolean isContent(String name) {
+    if (name.startsWith(PUBLICATION_PREFIX) || MODIFICATION_PROPERTIES.contains(name)) {
+      return false;
+    }
+    return !name.startsWith(JCR_PREFIX) || JCR_CONTENT_PROPERTIES.contains(name);
+  }
+
+  private static void updateValue(MessageDigest digest, Value value) throws RepositoryException {
+    // Binaries are added by digest, so that they are read as streams
+    updateString(digest, value.getType() == PropertyType.BINARY ? digest(value) : value.getString());
+  }
+
+  private static String digest(Value value) throws RepositoryException {
+    MessageDigest digest = newDigest();
+    InputStream stream = value.getStream();
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = stream.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      throw new RepositoryException("Can't read binary value", e);
+    } finally {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // Nothing to do
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static void updateString(MessageDigest digest, String value) {
+    try {
+      digest.update(value.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    // Separator, so that consecutive values can't be confused
+    digest.update((byte) 0);
+  }
+}
@@ -0,0 +1,197 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.Lifecycle;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.State;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+
+/**
+ * Transition tables of the authoring publication: how each target state is
+ * applied, the log constant of each state, and the states of each configured
+ * lifecycle compiled once instead of being read from the lifecycle
+ * configuration on every transition. A lifecycle is compiled again when its
+ * configuration is replaced.
+ */
+class LifecycleStateMachine {
+
+  /**
+   * Processing applied to a node to move it to a state.
+   */
+  enum Transition {
+    /** Only the state, log and revision data are changed */
+    CHANGE_STATE,
+    /** The live revision is removed */
+    ARCHIVE,
+    /** The content is edited */
+    DRAFT,
+    /** A live version is created */
+    PUBLISH
+  }
+
+  private static final Map<String, Transition> TRANSITIONS = new HashMap<String, Transition>();
+  private static final Map<String, Transition> CASE_INSENSITIVE_TRANSITIONS = new HashMap<String, Transition>();
+  private static final Map<String, String> LOG_CONSTANTS = new HashMap<String, String>();
+
+  static {
+    TRANSITIONS.put(PublicationDefaultStates.PENDING, Transition.CHANGE_STATE);
+    TRANSITIONS.put(PublicationDefaultStates.APPROVED, Transition.CHANGE_STATE);
+    TRANSITIONS.put(PublicationDefaultStates.STAGED, Transition.CHANGE_STATE);
+    TRANSITIONS.put(PublicationDefaultStates.PUBLISHED, Transition.PUBLISH);
+    CASE_INSENSITIVE_TRANSITIONS.put(PublicationDefaultStates.ENROLLED.toLowerCase(), Transition.CHANGE_STATE);
+    CASE_INSENSITIVE_TRANSITIONS.put(PublicationDefaultStates.UNPUBLISHED.toLowerCase(), Transition.CHANGE_STATE);
+    CASE_INSENSITIVE_TRANSITIONS.put(PublicationDefaultStates.OBSOLETE.toLowerCase(), Transition.CHANGE_STATE);
+    CASE_INSENSITIVE_TRANSITIONS.put(PublicationDefaultStates.ARCHIVED.toLowerCase(), Transition.ARCHIVE);
+    CASE_INSENSITIVE_TRANSITIONS.put(PublicationDefaultStates.DRAFT.toLowerCase(), Transition.DRAFT);
+    for (Map.Entry<String, Transition> entry : CASE_INSENSITIVE_TRANSITIONS.entrySet()) {
+      TRANSITIONS.put(entry.getKey(), entry.getValue());
+    }
+
+    LOG_CONSTANTS.put(PublicationDefaultStates.APPROVED, AuthoringPublicationConstant.CHANGE_TO_APPROVED);
+    LOG_CONSTANTS.put(PublicationDefaultStates.ARCHIVED, AuthoringPublicationConstant.CHANGE_TO_ARCHIVED);
+    LOG_CONSTANTS.put(PublicationDefaultStates.DRAFT, AuthoringPublicationConstant.CHANGE_TO_DRAFT);
+    LOG_CONSTANTS.put(PublicationDefaultStates.ENROLLED, AuthoringPublicationConstant.ENROLLED_TO_LIFECYCLE);
+    LOG_CONSTANTS.put(PublicationDefaultStates.OBSOLETE, AuthoringPublicationConstant.CHANGE_TO_OBSOLETED);
+    LOG_CONSTANTS.put(PublicationDefaultStates.PENDING, AuthoringPublicationConstant.CHANGE_TO_PENDING);
+    LOG_CONSTANTS.put(PublicationDefaultStates.PUBLISHED, AuthoringPublicationConstant.CHANGE_TO_LIVE);
+    LOG_CONSTANTS.put(PublicationDefaultStates.STAGED, AuthoringPublicationConstant.CHANGE_TO_STAGED);
+    LOG_CONSTANTS.put(PublicationDefaultStates.UNPUBLISHED, AuthoringPublicationConstant.CHANGE_TO_UNPUBLISHED);
+  }
+
+  private final PublicationManager publicationManager;
+  private final ConcurrentMap<String, CompiledLifecycle> lifecycles = new ConcurrentHashMap<String, CompiledLifecycle>();
+
+  LifecycleStateMachine(PublicationManager publicationManager) {
+    this.publicationManager = publicationManager;
+  }
+
+  /**
+   * @param state
+   *          the target state
+   * @return the transition to apply, or null if the state isn't handled
+   */
+  static Transition getTransition(String state) {
+    if (state == null) {
+      return null;
+    }
+    Transition transition = TRANSITIONS.get(state);
+    if (transition == null) {
+      transition = CASE_INSENSITIVE_TRANSITIONS.get(state.toLowerCase());
+    }
+    return transition;
+  }
+
+  /**
+   * @param state
+   *          the new state
+   * @return the log constant describing the change to the state
+   */
+  static String getLogConstant(String state) {
+    return state == null ? null : LOG_CONSTANTS.get(state);
+  }
+
+  /**
+   * Gets a compiled lifecycle. A lifecycle is compiled on first access, and
+   * compiled again when its configuration has been replaced, for example by a
+   * lifecycle registered again with the same name.
+   * 
+   * @param name
+   *          the lifecycle name
+   * @return the lifecycle or null if it doesn't exist
+   */
+  CompiledLifecycle getLifecycle(String name) {
+    if (name == null) {
+      return null;
+    }
+    Lifecycle configuredLifecycle = publicationManager.getLifecycle(name);
+    if (configuredLifecycle == null) {
+      lifecycles.remove(name);
+      return null;
+    }
+    CompiledLifecycle lifecycle = lifecycles.get(name);
+    if (lifecycle == null || !lifecycle.isCompiledFrom(configuredLifecycle)) {
+      lifecycle = new CompiledLifecycle(configuredLifecycle);
+      lifecycles.put(name, lifecycle);
+    }
+    return lifecycle;
+  }
+
+  /**
+   * Drops the compiled lifecycles, so that they are compiled again on next
+   * access. Only needed when a lifecycle configuration is modified in place.
+   */
+  void refresh() {
+    lifecycles.clear();
+  }
+
+  /**
+   * Immutable view of a lifecycle configuration: its interned states and the
+   * transition applied to reach each of them.
+   */
+  static class CompiledLifecycle {
+    private final Lifecycle configuredLifecycle;
+    private final List<State> configuredStates;
+    private final int configuredStatesCount;
+    private final String firstState;
+    /** Transitions by configured state, null for states without processing */
+    private final Map<String, Transition> transitions;
+
+    CompiledLifecycle(Lifecycle lifecycle) {
+      this.configuredLifecycle = lifecycle;
+      this.configuredStates = lifecycle.getStates();
+      this.configuredStatesCount = configuredStates == null ? 0 : configuredStates.size();
+      Map<String, Transition> compiledTransitions = new HashMap<String, Transition>();
+      String compiledFirstState = null;
+      if (configuredStates != null) {
+        for (State configuredState : configuredStates) {
+          String state = configuredState.getState().intern();
+          if (compiledFirstState == null) {
+            compiledFirstState = state;
+          }
+          compiledTransitions.put(state, LifecycleStateMachine.getTransition(state));
+        }
+      }
+      this.firstState = compiledFirstState;
+      this.transitions = Collections.unmodifiableMap(compiledTransitions);
+    }
+
+    /**
+     * @return the first state of the lifecycle, or null if it has no state
+     */
+    String getFirstState() {
+      return firstState;
+    }
+
+    /**
+     * @param state
+     *          the target state
+     * @return true if the state is configured in the lifecycle or is one of the
+     *         states the publication moves contents to by itself
+     */
+    boolean isAllowed(String state) {
+      return state != null && (transitions.containsKey(state) || LifecycleStateMachine.getTransition(state) != null);
+    }
+
+    /**
+     * @param state
+     *          the target state
+     * @return the transition to apply, or null if the state isn't handled
+     */
+    Transition getTransition(String state) {
+      Transition transition = transitions.get(state);
+      return transition == null ? LifecycleStateMachine.getTransition(state) : transition;
+    }
+
+    private boolean isCompiledFrom(Lifecycle lifecycle) {
+      List<State> states = lifecycle.getStates();
+      return configuredLifecycle == lifecycle && configuredStates == states && configuredStatesCount == (states == null ? 0 : states.size());
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import java.io.Serializable;
+
+/**
+ * Cached resolution of the live revision of a node: its publication state and
+ * the path of the node to display in live mode.
+ */
+public class LiveRevisionEntry implements Serializable {
+
+  private static final long serialVersionUID = -3954862137429812634L;
+
+  /** Live path used when the live revision is the node itself */
+  static final String SELF = "";
+
+  private final String state;
+  private final String livePath;
+
+  LiveRevisionEntry(String state, String livePath) {
+    this.state = state;
+    this.livePath = livePath;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return the path of the live node, {@link #SELF} if the node is itself
+   *         the live revision, or null if there is no live revision
+   */
+  public String getLivePath() {
+    return livePath;
+  }
+}
@@ -0,0 +1,119 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.publication.lifecycle.stageversion.config.VersionData;
+
+/**
+ * Revision data of a node, parsed once from
+ * {@link AuthoringPublicationConstant#REVISION_DATA_PROP} and written back once
+ * whatever the number of updates made during a state change. Values keep the
+ * {@link VersionData#toStringValue()} format read by the publication UI.
+ * <p>
+ * The parsed data isn't cached between state changes: the property is also
+ * written by the publication UI, so a cached copy could be stale.
+ */
+class RevisionData {
+
+  private static final Log LOG = ExoLogger.getLogger(RevisionData.class.getName());
+
+  /** Number of fields of a value written by VersionData */
+  private static final int VALUE_FIELDS = 3;
+
+  private final Map<String, VersionData> revisions = new LinkedHashMap<String, VersionData>();
+  private boolean modified;
+
+  private RevisionData() {
+  }
+
+  /**
+   * Reads the revision data of the node. Malformed values are ignored.
+   * 
+   * @param node
+   *          the node
+   * @return the revision data
+   * @throws RepositoryException
+   *           if the property can't be read
+   */
+  static RevisionData read(Node node) throws RepositoryException {
+    RevisionData revisionData = new RevisionData();
+    if (!node.hasProperty(AuthoringPublicationConstant.REVISION_DATA_PROP)) {
+      return revisionData;
+    }
+    for (Value value : node.getProperty(AuthoringPublicationConstant.REVISION_DATA_PROP).getValues()) {
+      String stringValue = value.getString();
+      // Same split as VersionData.toVersionData, which drops empty trailing fields
+      if (stringValue.split(",").length < VALUE_FIELDS) {
+        LOG.debug("Ignore malformed revision data '" + stringValue + "' of node '" + node.getPath() + "'");
+        continue;
+      }
+      VersionData versionData = VersionData.toVersionData(stringValue);
+      revisionData.revisions.put(versionData.getUUID(), versionData);
+    }
+    return revisionData;
+  }
+
+  VersionData get(String uuid) {
+    return revisions.get(uuid);
+  }
+
+  void put(VersionData versionData) {
+    revisions.put(versionData.getUUID(), versionData);
+    modified = true;
+  }
+
+  /**
+   * Sets the author and the state of a revision, adding it if needed.
+   */
+  void update(String uuid, String userId, String state) {
+    VersionData versionData = revisions.get(uuid);
+    if (versionData != null) {
+      versionData.setAuthor(userId);
+      versionData.setState(state);
+    } else {
+      revisions.put(uuid, new VersionData(uuid, state, userId));
+    }
+    modified = true;
+  }
+
+  void clear() {
+    revisions.clear();
+    modified = true;
+  }
+
+  /**
+   * Writes the revision data to the node if it has been modified.
+   * 
+   * @param node
+   *          the node
+   * @return the number of characters written
+   * @throws RepositoryException
+   *           if the property can't be set
+   */
+  int write(Node node) throws RepositoryException {
+    if (!modified) {
+      return 0;
+    }
+    ValueFactory factory = node.getSession().getValueFactory();
+    Value[] values = new Value[revisions.size()];
+    int i = 0;
+    int length = 0;
+    for (VersionData versionData : revisions.values()) {
+      String stringValue = versionData.toStringValue();
+      length += stringValue.length();
+      values[i++] = factory.createValue(stringValue);
+    }
+    node.setProperty(AuthoringPublicationConstant.REVISION_DATA_PROP, values);
+    modified = false;
+    return length;
+  }
+}
@@ -0,0 +1,295 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.cms.jcrext.activity.ActivityCommonService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.listener.ListenerService;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.picocontainer.Startable;
+
+/**
+ * Merges the state changed activities of a node raised within a time window
+ * into a single activity carrying the last state. The window of a node starts
+ * with its first state change, the activity is broadcasted when the window
+ * ends or when the container stops. A window of 0 disables the coalescing.
+ * <p>
+ * When more than <code>max.pending</code> nodes are waiting, the background
+ * thread broadcasts the activities of the oldest windows early, without
+ * blocking the state change that exceeded the limit.
+ */
+@Managed
+@ManagedDescription("Coalescing of publication state changed activities")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "activityCoalescer") })
+public class ActivityCoalescer implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(ActivityCoalescer.class.getName());
+
+  public static final String WINDOW_PARAM = "window";
+  public static final String MAX_PENDING_PARAM = "max.pending";
+
+  private static final Comparator<PendingActivity> BY_DEADLINE = new Comparator<PendingActivity>() {
+    public int compare(PendingActivity o1, PendingActivity o2) {
+      return o1.deadline < o2.deadline ? -1 : (o1.deadline == o2.deadline ? 0 : 1);
+    }
+  };
+
+  private final ListenerService listenerService;
+  private final RepositoryService repositoryService;
+  private final ExoContainerContext containerContext;
+
+  private final long window;
+  private final int maxPending;
+
+  private final ConcurrentMap<String, PendingActivity> pendingActivities = new ConcurrentHashMap<String, PendingActivity>();
+  private volatile ScheduledExecutorService executor;
+  private volatile boolean running;
+  private final AtomicBoolean overflowFlushScheduled = new AtomicBoolean();
+
+  private final AtomicLong stateChanges = new AtomicLong();
+  private final AtomicLong activitiesBroadcasted = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public ActivityCoalescer(ListenerService listenerService, RepositoryService repositoryService, ExoContainerContext containerContext, InitParams params) {
+    this.listenerService = listenerService;
+    this.repositoryService = repositoryService;
+    this.containerContext = containerContext;
+    this.window = Math.max(0, ServiceParams.getLong(params, WINDOW_PARAM, 0));
+    this.maxPending = Math.max(1, ServiceParams.getInt(params, MAX_PENDING_PARAM, 10000));
+  }
+
+  public void start() {
+    if (window == 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "publication-activity-coalescer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(100, window / 4);
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush(System.currentTimeMillis());
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+    running = true;
+  }
+
+  public void stop() {
+    if (executor == null) {
+      return;
+    }
+    running = false;
+    executor.shutdown();
+    try {
+      executor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+    // Don't lose the activities of the last window
+    flush(Long.MAX_VALUE);
+  }
+
+  /**
+   * Raises the state changed activity of a node, immediately or at the end of
+   * its coalescing window.
+   *
+   * @param node
+   *          the node which state has changed
+   * @param newState
+   *          the new state
+   * @throws Exception
+   *           if the activity is broadcasted in the caller thread and a
+   *           listener fails
+   */
+  public void stateChanged(Node node, String newState) throws Exception {
+    stateChanges.incrementAndGet();
+    if (!running) {
+      broadcast(node, newState);
+      return;
+    }
+    NodeReference nodeReference = NodeReference.of(node);
+    PendingActivity pendingActivity = new PendingActivity(nodeReference, newState, ConversationState.getCurrent(), System.currentTimeMillis() + window);
+    PendingActivity previousActivity = pendingActivities.putIfAbsent(nodeReference.getKey(), pendingActivity);
+    if (previousActivity != null) {
+      synchronized (previousActivity) {
+        if (!previousActivity.flushed) {
+          // Keep the window of the first change and the state of the last one
+          previousActivity.state = newState;
+          previousActivity.conversationState = pendingActivity.conversationState;
+          return;
+        }
+      }
+      // The previous window is being flushed, start a new one
+      pendingActivities.put(nodeReference.getKey(), pendingActivity);
+    }
+    if (pendingActivities.size() > maxPending) {
+      scheduleOverflowFlush();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Number of nodes which activity is waiting for the end of its window")
+  public int getPendingActivities() {
+    return pendingActivities.size();
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes received")
+  public long getStateChanges() {
+    return stateChanges.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of activities broadcasted")
+  public long getActivitiesBroadcasted() {
+    return activitiesBroadcasted.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of activities which broadcast failed")
+  public long getFailures() {
+    return failures.get();
+  }
+
+  @Managed
+  @ManagedDescription("Coalescing window in milliseconds, 0 if disabled")
+  public long getWindow() {
+    return window;
+  }
+
+  private void broadcast(Node node, String state) throws Exception {
+    listenerService.broadcast(ActivityCommonService.STATE_CHANGED_ACTIVITY, node, state);
+    activitiesBroadcasted.incrementAndGet();
+  }
+
+  /**
+   * Asks the background thread to reduce the pending activities, unless it is
+   * already asked to.
+   */
+  private void scheduleOverflowFlush() {
+    ScheduledExecutorService currentExecutor = executor;
+    if (currentExecutor == null || !overflowFlushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      currentExecutor.execute(new Runnable() {
+        public void run() {
+          overflowFlushScheduled.set(false);
+          flushOverflow();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Stopping: all the pending activities are flushed by stop
+      overflowFlushScheduled.set(false);
+    }
+  }
+
+  /**
+   * Broadcasts the activities which window ended, then the ones of the oldest
+   * windows until three quarters of the limit are left, so that the next
+   * overflow doesn't come with the next state change.
+   */
+  private void flushOverflow() {
+    flush(System.currentTimeMillis());
+    int excess = pendingActivities.size() - maxPending * 3 / 4;
+    if (excess <= 0) {
+      return;
+    }
+    List<PendingActivity> oldestActivities = new ArrayList<PendingActivity>(pendingActivities.values());
+    Collections.sort(oldestActivities, BY_DEADLINE);
+    flush(oldestActivities.subList(0, Math.min(excess, oldestActivities.size())));
+  }
+
+  /**
+   * Broadcasts the activities which window ended before a date.
+   */
+  private void flush(long now) {
+    List<PendingActivity> dueActivities = new ArrayList<PendingActivity>();
+    for (Iterator<PendingActivity> iterator = pendingActivities.values().iterator(); iterator.hasNext();) {
+      PendingActivity pendingActivity = iterator.next();
+      if (pendingActivity.deadline <= now) {
+        dueActivities.add(pendingActivity);
+      }
+    }
+    flush(dueActivities);
+  }
+
+  private void flush(List<PendingActivity> activities) {
+    for (PendingActivity pendingActivity : activities) {
+      synchronized (pendingActivity) {
+        pendingActivity.flushed = true;
+      }
+      pendingActivities.remove(pendingActivity.nodeReference.getKey(), pendingActivity);
+    }
+    for (PendingActivity pendingActivity : activities) {
+      execute(pendingActivity);
+    }
+  }
+
+  private void execute(PendingActivity pendingActivity) {
+    ExoContainer container = containerContext.getContainer();
+    ExoContainerContext.setCurrentContainer(container);
+    ConversationState previousConversationState = ConversationState.getCurrent();
+    ConversationState.setCurrent(pendingActivity.conversationState);
+    RequestLifeCycle.begin(container);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(pendingActivity.nodeReference.getWorkspace(), repositoryService.getCurrentRepository());
+      broadcast(pendingActivity.nodeReference.resolve(session), pendingActivity.state);
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      LOG.warn("Error while broadcasting state changed activity of '" + pendingActivity.nodeReference + "'", e);
+    } finally {
+      sessionProvider.close();
+      RequestLifeCycle.end();
+      ConversationState.setCurrent(previousConversationState);
+    }
+  }
+
+  private static class PendingActivity {
+    private final NodeReference nodeReference;
+    private final long deadline;
+    private String state;
+    private ConversationState conversationState;
+    private boolean flushed;
+
+    PendingActivity(NodeReference nodeReference, String state, ConversationState conversationState, long deadline) {
+      this.nodeReference = nodeReference;
+      this.state = state;
+      this.conversationState = conversationState;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.portal.application.PortalRequestContext;
+import org.exoplatform.portal.config.DataStorage;
+import org.exoplatform.portal.config.UserPortalConfig;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.portal.mop.EventType;
+import org.exoplatform.portal.mop.SiteKey;
+import org.exoplatform.portal.mop.navigation.Scope;
+import org.exoplatform.portal.mop.user.UserNavigation;
+import org.exoplatform.portal.mop.user.UserNode;
+import org.exoplatform.portal.mop.user.UserPortal;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.CachedObjectSelector;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.services.cache.ObjectCacheInfo;
+import org.exoplatform.services.listener.Event;
+import org.exoplatform.services.listener.Listener;
+import org.exoplatform.services.listener.ListenerService;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.publication.PublicationUtil;
+import org.picocontainer.Startable;
+
+/**
+ * Index of the navigation URIs of portal pages. Each navigation tree is
+ * indexed by page id, as seen by a user, the first time it is needed: the
+ * nodes of a navigation visible to a user depend on their memberships. Indexes
+ * are dropped when a navigation changes on this server, and expire after a
+ * while so that changes made on other cluster members are eventually seen.
+ * The navigations visible to a user in a portal are cached separately.
+ */
+@Managed
+@ManagedDescription("Index of page navigation URIs")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "navigationUriIndex") })
+public class NavigationUriIndex implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(NavigationUriIndex.class.getName());
+
+  private static final String USER_NAVIGATIONS_CACHE_NAME = "publication.noversion.UserNavigationsCache";
+
+  private static final String NAVIGATION_INDEXES_CACHE_NAME = "publication.noversion.NavigationIndexesCache";
+
+  private final UserPortalConfigService userPortalConfigService;
+  private final ListenerService listenerService;
+
+  /** Visible navigations by portal and user */
+  private final ExoCache<String, ArrayList<SiteKey>> userNavigationsCache;
+
+  /** Navigation URIs by page id, by navigation and user */
+  private final ExoCache<String, HashMap<String, List<String>>> navigationIndexesCache;
+
+  /** Incremented on each change, to avoid storing an index built from a stale tree */
+  private final AtomicLong modifications = new AtomicLong();
+
+  private volatile List<String> portalNames;
+
+  private final AtomicLong indexBuilds = new AtomicLong();
+
+  public NavigationUriIndex(UserPortalConfigService userPortalConfigService, ListenerService listenerService, CacheService cacheService) {
+    this.userPortalConfigService = userPortalConfigService;
+    this.listenerService = listenerService;
+    this.userNavigationsCache = cacheService.getCacheInstance(USER_NAVIGATIONS_CACHE_NAME);
+    this.navigationIndexesCache = cacheService.getCacheInstance(NAVIGATION_INDEXES_CACHE_NAME);
+  }
+
+  public void start() {
+    Listener<Object, SiteKey> navigationListener = new Listener<Object, SiteKey>() {
+      @Override
+      public void onEvent(Event<Object, SiteKey> event) throws Exception {
+        invalidateNavigation(event.getData(), !EventType.NAVIGATION_UPDATED.equals(event.getEventName()));
+      }
+    };
+    listenerService.addListener(EventType.NAVIGATION_CREATED, navigationListener);
+    listenerService.addListener(EventType.NAVIGATION_UPDATED, navigationListener);
+    listenerService.addListener(EventType.NAVIGATION_DESTROYED, navigationListener);
+
+    Listener<Object, Object> portalListener = new Listener<Object, Object>() {
+      @Override
+      public void onEvent(Event<Object, Object> event) throws Exception {
+        portalNames = null;
+        userNavigationsCache.clearCache();
+      }
+    };
+    listenerService.addListener(DataStorage.PORTAL_CONFIG_CREATED, portalListener);
+    listenerService.addListener(DataStorage.PORTAL_CONFIG_REMOVED, portalListener);
+  }
+
+  public void stop() {
+  }
+
+  /**
+   * Gets the navigation URIs of a page, prefixed by their portal name, among
+   * the navigations visible to a user.
+   * 
+   * @param pageId
+   *          the page id
+   * @param remoteUser
+   *          the user
+   * @return the navigation URIs
+   * @throws Exception
+   *           if the portal configuration can't be loaded
+   */
+  public List<String> getNavigationUris(String pageId, String remoteUser) throws Exception {
+    List<String> navigationUris = new ArrayList<String>();
+    for (String portalName : getPortalNames()) {
+      UserPortal userPortal = null;
+      String userNavigationsKey = portalName + ":" + remoteUser;
+      List<SiteKey> siteKeys = userNavigationsCache.get(userNavigationsKey);
+      if (siteKeys == null) {
+        userPortal = getUserPortal(portalName, remoteUser);
+        ArrayList<SiteKey> visibleSiteKeys = new ArrayList<SiteKey>();
+        for (UserNavigation navigation : userPortal.getNavigations()) {
+          visibleSiteKeys.add(navigation.getKey());
+        }
+        userNavigationsCache.put(userNavigationsKey, visibleSiteKeys);
+        siteKeys = visibleSiteKeys;
+      }
+
+      for (SiteKey siteKey : siteKeys) {
+        String navigationIndexKey = getNavigationIndexKey(siteKey, remoteUser);
+        Map<String, List<String>> navigationIndex = navigationIndexesCache.get(navigationIndexKey);
+        if (navigationIndex == null) {
+          if (userPortal == null) {
+            userPortal = getUserPortal(portalName, remoteUser);
+          }
+          UserNavigation navigation = userPortal.getNavigation(siteKey);
+          if (navigation == null) {
+            continue;
+          }
+          navigationIndex = buildNavigationIndex(userPortal, navigation, navigationIndexKey);
+        }
+        List<String> uris = navigationIndex.get(pageId);
+        if (uris != null) {
+          for (String uri : uris) {
+            navigationUris.add(PublicationUtil.setMixedNavigationUri(portalName, uri));
+          }
+        }
+      }
+    }
+    return navigationUris;
+  }
+
+  @Managed
+  @ManagedDescription("Number of navigations indexed for a user")
+  public int getIndexedNavigations() {
+    return navigationIndexesCache.getCacheSize();
+  }
+
+  @Managed
+  @ManagedDescription("Number of navigation trees indexed since startup")
+  public long getIndexBuilds() {
+    return indexBuilds.get();
+  }
+
+  @Managed
+  @ManagedDescription("Drops all indexes")
+  public void clear() {
+    modifications.incrementAndGet();
+    navigationIndexesCache.clearCache();
+    portalNames = null;
+    userNavigationsCache.clearCache();
+  }
+
+  private void invalidateNavigation(SiteKey siteKey, boolean navigationsChanged) throws Exception {
+    modifications.incrementAndGet();
+    if (siteKey != null) {
+      final String keyPrefix = getNavigationIndexKey(siteKey, "");
+      navigationIndexesCache.select(new CachedObjectSelector<String, HashMap<String, List<String>>>() {
+        public boolean select(String key, ObjectCacheInfo<? extends HashMap<String, List<String>>> ocinfo) {
+          return key.startsWith(keyPrefix);
+        }
+
+        public void onSelect(ExoCache<? extends String, ? extends HashMap<String, List<String>>> cache,
+                             String key,
+                             ObjectCacheInfo<? extends HashMap<String, List<String>>> ocinfo) throws Exception {
+          cache.remove(key);
+        }
+      });
+    }
+    if (navigationsChanged) {
+      userNavigationsCache.clearCache();
+    }
+  }
+
+  private static String getNavigationIndexKey(SiteKey siteKey, String remoteUser) {
+    return siteKey.getTypeName() + "::" + siteKey.getName() + "::" + (remoteUser == null ? "" : remoteUser);
+  }
+
+  private List<String> getPortalNames() throws Exception {
+    List<String> names = portalNames;
+    if (names == null) {
+      names = Collections.unmodifiableList(new ArrayList<String>(userPortalConfigService.getAllPortalNames()));
+      portalNames = names;
+    }
+    return names;
+  }
+
+  private UserPortal getUserPortal(String portalName, String remoteUser) throws Exception {
+    UserPortalConfig userPortalCfg = userPortalConfigService.getUserPortalConfig(portalName, remoteUser, PortalRequestContext.USER_PORTAL_CONTEXT);
+    return userPortalCfg.getUserPortal();
+  }
+
+  private Map<String, List<String>> buildNavigationIndex(UserPortal userPortal, UserNavigation navigation, String navigationIndexKey) {
+    long modificationsBeforeBuild = modifications.get();
+    HashMap<String, List<String>> navigationIndex = new HashMap<String, List<String>>();
+    UserNode root = userPortal.getNode(navigation, Scope.ALL, null, null);
+    indexNode(root, navigationIndex);
+    indexBuilds.incrementAndGet();
+    if (modificationsBeforeBuild == modifications.get()) {
+      navigationIndexesCache.put(navigationIndexKey, navigationIndex);
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("Navigation of '" + navigation.getKey() + "' changed while indexing it, the index is not kept");
+    }
+    return navigationIndex;
+  }
+
+  private void indexNode(UserNode node, Map<String, List<String>> navigationIndex) {
+    if (node.getPageRef() != null) {
+      String pageId = node.getPageRef().format();
+      List<String> uris = navigationIndex.get(pageId);
+      if (uris == null) {
+        uris = new ArrayList<String>(1);
+        navigationIndex.put(pageId, uris);
+      }
+      uris.add(node.getURI());
+    }
+    for (UserNode child : node.getChildren()) {
+      indexNode(child, navigationIndex);
+    }
+  }
+}
@@ -0,0 +1,334 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.lock.LockException;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Serializes the state changes of a node. Nodes are mapped to a fixed number of
+ * stripes by their UUID, a state change holds the in-JVM locks of the stripes
+ * of its nodes so that changes of unrelated nodes run in parallel. Stripes are
+ * always locked in the same order to avoid deadlocks between batches.
+ * <p>
+ * When the cluster lock is enabled, stripes are also mapped to a smaller number
+ * of <code>mix:lockable</code> nodes locked with a session scoped JCR lock, so
+ * that the state changes of a node are serialized between cluster members.
+ * These nodes are created at startup, as <code>nt:folder</code> nodes which
+ * don't allow same name siblings, so that two members can't create and lock
+ * two different nodes for the same stripe.
+ */
+@Managed
+@ManagedDescription("Locks serializing the state changes of a node")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "nodeLocks") })
+public class NodeLockManager implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(NodeLockManager.class.getName());
+
+  public static final String STRIPES_PARAM = "stripes";
+  public static final String TIMEOUT_PARAM = "timeout";
+  public static final String CLUSTER_ENABLED_PARAM = "cluster.enabled";
+  public static final String CLUSTER_WORKSPACE_PARAM = "cluster.workspace";
+  public static final String CLUSTER_PATH_PARAM = "cluster.path";
+  public static final String CLUSTER_STRIPES_PARAM = "cluster.stripes";
+
+  private static final String NT_FOLDER = "nt:folder";
+  private static final String MIX_LOCKABLE = "mix:lockable";
+  private static final String STRIPE_NODE_PREFIX = "stripe";
+  private static final long CLUSTER_LOCK_RETRY_DELAY = 20;
+  private static final int CLUSTER_INIT_ATTEMPTS = 5;
+
+  private final RepositoryService repositoryService;
+
+  private final ReentrantLock[] stripes;
+  private final long timeout;
+  private final boolean clusterEnabled;
+  private final String clusterWorkspace;
+  private final String clusterPath;
+  private final int clusterStripes;
+
+  private final AtomicLong acquisitions = new AtomicLong();
+  private final AtomicLong contentions = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+
+  public NodeLockManager(RepositoryService repositoryService, InitParams params) {
+    this.repositoryService = repositoryService;
+    int stripesCount = powerOfTwo(ServiceParams.getInt(params, STRIPES_PARAM, 4096));
+    this.stripes = new ReentrantLock[stripesCount];
+    for (int i = 0; i < stripesCount; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    this.timeout = Math.max(0, ServiceParams.getLong(params, TIMEOUT_PARAM, 30000));
+    this.clusterEnabled = ServiceParams.getBoolean(params, CLUSTER_ENABLED_PARAM, false);
+    this.clusterWorkspace = ServiceParams.getString(params, CLUSTER_WORKSPACE_PARAM, "collaboration");
+    this.clusterPath = ServiceParams.getString(params, CLUSTER_PATH_PARAM, "publicationLocks");
+    this.clusterStripes = Math.min(stripesCount, powerOfTwo(ServiceParams.getInt(params, CLUSTER_STRIPES_PARAM, 256)));
+  }
+
+  public void start() {
+    if (!clusterEnabled) {
+      return;
+    }
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      createClusterStripeNodes(sessionProvider.getSession(clusterWorkspace, repositoryService.getCurrentRepository()));
+    } catch (RepositoryException e) {
+      throw new IllegalStateException("Can't create the cluster lock nodes under '" + clusterWorkspace + ":/" + clusterPath + "'", e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  public void stop() {
+  }
+
+  /**
+   * Locks the stripes of the nodes. The returned locks must be released in a
+   * finally block by the same thread.
+   *
+   * @param nodes
+   *          the nodes to lock
+   * @return the acquired locks
+   * @throws LockException
+   *           if the locks can't be acquired before the timeout
+   * @throws RepositoryException
+   *           if the cluster lock can't be acquired
+   */
+  public Locks lock(Collection<Node> nodes) throws RepositoryException {
+    // Cluster stripes are taken in the same order as the in-JVM ones
+    SortedSet<Integer> stripeIndexes = new TreeSet<Integer>();
+    for (Node node : nodes) {
+      stripeIndexes.add(getStripe(NodeReference.of(node).getKey()));
+    }
+    long startTime = System.nanoTime();
+    long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(timeout);
+    Locks locks = new Locks();
+    try {
+      for (Integer stripeIndex : stripeIndexes) {
+        ReentrantLock stripe = stripes[stripeIndex];
+        if (!stripe.tryLock()) {
+          contentions.incrementAndGet();
+          if (!stripe.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            timeouts.incrementAndGet();
+            throw new LockException("Timeout while waiting for the state change lock of " + nodes.size() + " nodes");
+          }
+        }
+        locks.lockedStripes.add(stripe);
+      }
+      if (clusterEnabled) {
+        lockCluster(locks, stripeIndexes, deadline);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      locks.unlock();
+      throw new LockException("Interrupted while waiting for the state change lock", e);
+    } catch (RepositoryException e) {
+      locks.unlock();
+      throw e;
+    } catch (RuntimeException e) {
+      locks.unlock();
+      throw e;
+    }
+    long waitTime = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime);
+    acquisitions.incrementAndGet();
+    totalWaitTime.addAndGet(waitTime);
+    long currentMax = maxWaitTime.get();
+    while (waitTime > currentMax && !maxWaitTime.compareAndSet(currentMax, waitTime)) {
+      currentMax = maxWaitTime.get();
+    }
+    return locks;
+  }
+
+  @Managed
+  @ManagedDescription("Number of locks acquired")
+  public long getAcquisitions() {
+    return acquisitions.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of lock requests that had to wait for another state change")
+  public long getContentions() {
+    return contentions.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of lock requests that timed out")
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Managed
+  @ManagedDescription("Average lock wait time in microseconds")
+  public long getAverageWaitTime() {
+    long count = acquisitions.get();
+    return count == 0 ? 0 : totalWaitTime.get() / count;
+  }
+
+  @Managed
+  @ManagedDescription("Maximum lock wait time in microseconds")
+  public long getMaxWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of lock stripes")
+  public int getStripes() {
+    return stripes.length;
+  }
+
+  @Managed
+  @ManagedDescription("Number of cluster lock nodes")
+  public int getClusterStripes() {
+    return clusterStripes;
+  }
+
+  @Managed
+  @ManagedDescription("Whether locks are also acquired cluster wide")
+  public boolean isClusterEnabled() {
+    return clusterEnabled;
+  }
+
+  private static int powerOfTwo(int requested) {
+    int count = 1;
+    while (count < requested) {
+      count <<= 1;
+    }
+    return count;
+  }
+
+  private int getStripe(String key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & (stripes.length - 1);
+  }
+
+  private void lockCluster(Locks locks, SortedSet<Integer> stripeIndexes, long deadline) throws RepositoryException, InterruptedException {
+    SortedSet<Integer> clusterStripeIndexes = new TreeSet<Integer>();
+    for (Integer stripeIndex : stripeIndexes) {
+      clusterStripeIndexes.add(stripeIndex & (clusterStripes - 1));
+    }
+    locks.clusterSessionProvider = SessionProvider.createSystemProvider();
+    Session session = locks.clusterSessionProvider.getSession(clusterWorkspace, repositoryService.getCurrentRepository());
+    Node locksRoot = session.getRootNode().getNode(clusterPath);
+    for (Integer stripeIndex : clusterStripeIndexes) {
+      Node stripeNode = locksRoot.getNode(STRIPE_NODE_PREFIX + stripeIndex);
+      while (true) {
+        try {
+          stripeNode.lock(false, true);
+          locks.clusterLockedNodes.add(stripeNode);
+          break;
+        } catch (LockException e) {
+          if (System.nanoTime() >= deadline) {
+            timeouts.incrementAndGet();
+            throw new LockException("Timeout while waiting for the cluster lock of stripe " + stripeIndex, e);
+          }
+          contentions.incrementAndGet();
+          Thread.sleep(CLUSTER_LOCK_RETRY_DELAY);
+          stripeNode.refresh(false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the missing lock nodes. Other cluster members may create them at
+   * the same time: the save then fails and the nodes are read again.
+   */
+  private void createClusterStripeNodes(Session session) throws RepositoryException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        Node rootNode = session.getRootNode();
+        if (!rootNode.hasNode(clusterPath)) {
+          rootNode.addNode(clusterPath, NT_FOLDER);
+          session.save();
+        }
+        // Members use the first node if several have been created at once
+        Node locksRoot = rootNode.getNode(clusterPath);
+        boolean added = false;
+        for (int i = 0; i < clusterStripes; i++) {
+          String name = STRIPE_NODE_PREFIX + i;
+          if (!locksRoot.hasNode(name)) {
+            Node stripeNode = locksRoot.addNode(name, NT_FOLDER);
+            stripeNode.addMixin(MIX_LOCKABLE);
+            added = true;
+          }
+        }
+        if (added) {
+          session.save();
+        }
+        return;
+      } catch (ItemExistsException e) {
+        retryClusterStripeNodes(session, attempt, e);
+      } catch (InvalidItemStateException e) {
+        retryClusterStripeNodes(session, attempt, e);
+      }
+    }
+  }
+
+  private void retryClusterStripeNodes(Session session, int attempt, RepositoryException e) throws RepositoryException {
+    if (attempt >= CLUSTER_INIT_ATTEMPTS) {
+      throw e;
+    }
+    LOG.debug("Cluster lock nodes created concurrently, reading them again", e);
+    session.refresh(false);
+  }
+
+  /**
+   * Locks acquired for a state change.
+   */
+  public static class Locks {
+    private final List<ReentrantLock> lockedStripes = new ArrayList<ReentrantLock>();
+    private final List<Node> clusterLockedNodes = new ArrayList<Node>();
+    private SessionProvider clusterSessionProvider;
+
+    private Locks() {
+    }
+
+    /**
+     * Releases the cluster locks then the in-JVM locks.
+     */
+    public void unlock() {
+      for (Node stripeNode : clusterLockedNodes) {
+        try {
+          stripeNode.unlock();
+        } catch (Exception e) {
+          // The lock is released anyway when the session is closed
+          LOG.warn("Can't release cluster lock", e);
+        }
+      }
+      clusterLockedNodes.clear();
+      if (clusterSessionProvider != null) {
+        clusterSessionProvider.close();
+        clusterSessionProvider = null;
+      }
+      for (int i = lockedStripes.size() - 1; i >= 0; i--) {
+        lockedStripes.get(i).unlock();
+      }
+      lockedStripes.clear();
+    }
+  }
+}
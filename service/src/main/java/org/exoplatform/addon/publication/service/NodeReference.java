@@ -0,0 +1,69 @@
+package org.exoplatform.addon.publication.service;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Session independent reference to a node, used to reload a node in another
+ * thread or another session.
+ */
+public class NodeReference {
+
+  private static final String MIX_REFERENCEABLE = "mix:referenceable";
+
+  private final String workspace;
+  private final String uuid;
+  private final String path;
+
+  public NodeReference(String workspace, String uuid, String path) {
+    this.workspace = workspace;
+    this.uuid = uuid;
+    this.path = path;
+  }
+
+  public static NodeReference of(Node node) throws RepositoryException {
+    String uuid = node.isNodeType(MIX_REFERENCEABLE) ? node.getUUID() : null;
+    return new NodeReference(node.getSession().getWorkspace().getName(), uuid, node.getPath());
+  }
+
+  /**
+   * Loads the referenced node, by UUID if available, else by path.
+   * 
+   * @param session
+   *          a session opened on {@link #getWorkspace()}
+   * @return the node
+   * @throws RepositoryException
+   *           if the node doesn't exist anymore
+   */
+  public Node resolve(Session session) throws RepositoryException {
+    if (uuid != null) {
+      return session.getNodeByUUID(uuid);
+    }
+    return (Node) session.getItem(path);
+  }
+
+  public String getWorkspace() {
+    return workspace;
+  }
+
+  public String getUUID() {
+    return uuid;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return a key identifying the node in the repository
+   */
+  public String getKey() {
+    return workspace + ":" + (uuid == null ? path : uuid);
+  }
+
+  @Override
+  public String toString() {
+    return workspace + ":" + path;
+  }
+}
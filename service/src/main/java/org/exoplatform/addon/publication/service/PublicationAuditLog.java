@@ -0,0 +1,364 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.util.Text;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.picocontainer.Startable;
+
+/**
+ * Append-only history of the publication state changes, stored in a separate
+ * tree of the repository instead of the <code>publication:history</code>
+ * property of the content, which only keeps the last entry. Entries are queued
+ * and written in batches by a background thread, a bounded number of entries
+ * is kept per content.
+ * <p>
+ * Nodes of the tree don't allow same-name siblings: when another writer, of
+ * this server or of another cluster member, creates the node of a content at
+ * the same time, the batch is written again on the existing node.
+ */
+@Managed
+@ManagedDescription("History of the publication state changes")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "auditLog") })
+public class PublicationAuditLog implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(PublicationAuditLog.class.getName());
+
+  public static final String ENABLED_PARAM = "enabled";
+  public static final String WORKSPACE_PARAM = "workspace";
+  public static final String ROOT_PATH_PARAM = "root.path";
+  public static final String RETENTION_PARAM = "retention";
+  public static final String QUEUE_CAPACITY_PARAM = "queue.capacity";
+  public static final String BATCH_SIZE_PARAM = "batch.size";
+
+  private static final String NT_FOLDER = "nt:folder";
+  private static final String AUDIT_CONTENT_NODETYPE = "publication:auditContent";
+  private static final String AUDIT_ENTRY_NODETYPE = "publication:auditEntry";
+  private static final String CONTENT_WORKSPACE_PROP = "publication:auditWorkspace";
+  private static final String CONTENT_PATH_PROP = "publication:auditPath";
+  private static final String ENTRY_PROP = "publication:auditEntry";
+  private static final String DATE_PROP = "publication:auditDate";
+  private static final int WRITE_ATTEMPTS = 5;
+
+  private final RepositoryService repositoryService;
+  private final ExoContainerContext containerContext;
+
+  private final boolean enabled;
+  private final String workspace;
+  private final String rootPath;
+  private final int retention;
+  private final int batchSize;
+  private final BlockingQueue<AuditEntry> queue;
+
+  private Thread writer;
+  private volatile boolean running;
+  private final AtomicLong sequence = new AtomicLong();
+  /** Distinguishes the entries written by cluster members at the same time */
+  private final String writerId = UUID.randomUUID().toString().substring(0, 8);
+
+  private final AtomicLong entriesWritten = new AtomicLong();
+  private final AtomicLong entriesFailed = new AtomicLong();
+  private final AtomicLong entriesPurged = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
+  public PublicationAuditLog(RepositoryService repositoryService, ExoContainerContext containerContext, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.containerContext = containerContext;
+    this.enabled = ServiceParams.getBoolean(params, ENABLED_PARAM, true);
+    this.workspace = ServiceParams.getString(params, WORKSPACE_PARAM, "collaboration");
+    this.rootPath = ServiceParams.getString(params, ROOT_PATH_PARAM, "publicationAudit");
+    this.retention = Math.max(1, ServiceParams.getInt(params, RETENTION_PARAM, 100));
+    this.batchSize = Math.max(1, ServiceParams.getInt(params, BATCH_SIZE_PARAM, 100));
+    this.queue = new ArrayBlockingQueue<AuditEntry>(Math.max(1, ServiceParams.getInt(params, QUEUE_CAPACITY_PARAM, 10000)));
+  }
+
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    running = true;
+    writer = new Thread("publication-audit-writer") {
+      @Override
+      public void run() {
+        ExoContainer container = containerContext.getContainer();
+        ExoContainerContext.setCurrentContainer(container);
+        while (running || !queue.isEmpty()) {
+          try {
+            AuditEntry entry = queue.poll(1, TimeUnit.SECONDS);
+            if (entry == null) {
+              continue;
+            }
+            List<AuditEntry> entries = new ArrayList<AuditEntry>(batchSize);
+            entries.add(entry);
+            queue.drainTo(entries, batchSize - 1);
+            RequestLifeCycle.begin(container);
+            try {
+              write(entries);
+            } finally {
+              RequestLifeCycle.end();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Exception e) {
+            LOG.error("Error while writing publication audit entries", e);
+          }
+        }
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public void stop() {
+    if (writer == null) {
+      return;
+    }
+    running = false;
+    try {
+      // Let the writer flush the queue before leaving
+      writer.join(TimeUnit.SECONDS.toMillis(30));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (writer.isAlive()) {
+      LOG.warn("Publication audit writer didn't finish in time, " + queue.size() + " entries are lost");
+      writer.interrupt();
+    }
+    writer = null;
+  }
+
+  /**
+   * Appends an entry to the history of a content. The entry is written
+   * asynchronously, or in the caller thread if the queue is full.
+   *
+   * @param nodeReference
+   *          the content
+   * @param logEntry
+   *          the entry, as formatted by the publication log
+   */
+  public void append(NodeReference nodeReference, String logEntry) {
+    if (!running) {
+      return;
+    }
+    AuditEntry entry = new AuditEntry(nodeReference, logEntry, Calendar.getInstance());
+    if (!queue.offer(entry)) {
+      write(Collections.singletonList(entry));
+    }
+  }
+
+  /**
+   * Reads the history of a content, most recent entries first.
+   *
+   * @param nodeReference
+   *          the content
+   * @param offset
+   *          the number of entries to skip
+   * @param limit
+   *          the maximum number of entries to return
+   * @return the entries, as formatted by the publication log
+   * @throws RepositoryException
+   *           if the history can't be read
+   */
+  public List<String> getEntries(NodeReference nodeReference, int offset, int limit) throws RepositoryException {
+    List<String> entries = new ArrayList<String>();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      String contentPath = "/" + rootPath + "/" + getBucketName(nodeReference) + "/" + getContentName(nodeReference);
+      if (!session.itemExists(contentPath)) {
+        return entries;
+      }
+      // Retention keeps the number of children small enough to be read at once
+      NodeIterator entryNodes = ((Node) session.getItem(contentPath)).getNodes();
+      while (entryNodes.hasNext()) {
+        entries.add(entryNodes.nextNode().getProperty(ENTRY_PROP).getString());
+      }
+    } finally {
+      sessionProvider.close();
+    }
+    Collections.reverse(entries);
+    int fromIndex = Math.min(Math.max(0, offset), entries.size());
+    int toIndex = Math.min(fromIndex + Math.max(0, limit), entries.size());
+    return new ArrayList<String>(entries.subList(fromIndex, toIndex));
+  }
+
+  @Managed
+  @ManagedDescription("Reads the publication history of a content, most recent entries first")
+  public String getHistory(@ManagedDescription("Workspace name") @ManagedName("workspace") String contentWorkspace,
+      @ManagedDescription("Path of the content") @ManagedName("path") String path, @ManagedDescription("Entries to skip") @ManagedName("offset") int offset,
+      @ManagedDescription("Maximum entries to return") @ManagedName("limit") int limit) throws RepositoryException {
+    NodeReference nodeReference;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(contentWorkspace, repositoryService.getCurrentRepository());
+      nodeReference = NodeReference.of((Node) session.getItem(path));
+    } finally {
+      sessionProvider.close();
+    }
+    StringBuilder history = new StringBuilder();
+    for (String entry : getEntries(nodeReference, offset, limit)) {
+      history.append(entry).append('\n');
+    }
+    return history.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries waiting to be written")
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries written")
+  public long getEntriesWritten() {
+    return entriesWritten.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries that couldn't be written")
+  public long getEntriesFailed() {
+    return entriesFailed.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries deleted by the retention")
+  public long getEntriesPurged() {
+    return entriesPurged.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of batches written")
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * Writes a batch of entries with a single save.
+   */
+  private void write(List<AuditEntry> entries) {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    Session session = null;
+    try {
+      session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      for (int attempt = 1;; attempt++) {
+        try {
+          long purged = write(session, entries);
+          session.save();
+          batches.incrementAndGet();
+          entriesWritten.addAndGet(entries.size());
+          entriesPurged.addAndGet(purged);
+          return;
+        } catch (ItemExistsException e) {
+          // A node has been created by another writer, write again on it
+          if (attempt >= WRITE_ATTEMPTS) {
+            throw e;
+          }
+          session.refresh(false);
+        } catch (InvalidItemStateException e) {
+          // Purged entries have been removed by another writer
+          if (attempt >= WRITE_ATTEMPTS) {
+            throw e;
+          }
+          session.refresh(false);
+        }
+      }
+    } catch (Exception e) {
+      entriesFailed.addAndGet(entries.size());
+      LOG.warn("Can't write " + entries.size() + " publication audit entries", e);
+      if (session != null) {
+        try {
+          session.refresh(false);
+        } catch (RepositoryException ex) {
+          LOG.debug("Can't discard pending audit changes", ex);
+        }
+      }
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Adds a batch of entries to the session.
+   *
+   * @return the number of entries removed by the retention
+   */
+  private long write(Session session, List<AuditEntry> entries) throws RepositoryException {
+    Node rootNode = getOrAddNode(session.getRootNode(), rootPath, NT_FOLDER);
+    long purged = 0;
+    for (AuditEntry entry : entries) {
+      Node bucketNode = getOrAddNode(rootNode, getBucketName(entry.nodeReference), NT_FOLDER);
+      Node contentNode = getOrAddNode(bucketNode, getContentName(entry.nodeReference), AUDIT_CONTENT_NODETYPE);
+      contentNode.setProperty(CONTENT_WORKSPACE_PROP, entry.nodeReference.getWorkspace());
+      contentNode.setProperty(CONTENT_PATH_PROP, entry.nodeReference.getPath());
+
+      Node entryNode = contentNode.addNode(entry.date.getTimeInMillis() + "-" + writerId + "-" + sequence.incrementAndGet(), AUDIT_ENTRY_NODETYPE);
+      entryNode.setProperty(ENTRY_PROP, entry.logEntry);
+      entryNode.setProperty(DATE_PROP, entry.date);
+
+      // Children are iterated in insertion order, oldest first
+      long exceeding = contentNode.getNodes().getSize() - retention;
+      NodeIterator entryNodes = contentNode.getNodes();
+      while (exceeding-- > 0 && entryNodes.hasNext()) {
+        entryNodes.nextNode().remove();
+        purged++;
+      }
+    }
+    return purged;
+  }
+
+  private static Node getOrAddNode(Node parent, String name, String nodeType) throws RepositoryException {
+    return parent.hasNode(name) ? parent.getNode(name) : parent.addNode(name, nodeType);
+  }
+
+  /**
+   * Contents are spread in 256 buckets to keep the number of children of a
+   * node reasonable.
+   */
+  private static String getBucketName(NodeReference nodeReference) {
+    return Integer.toHexString(0x100 | (nodeReference.getKey().hashCode() & 0xff)).substring(1);
+  }
+
+  private static String getContentName(NodeReference nodeReference) {
+    return Text.escapeIllegalJcrChars(nodeReference.getKey());
+  }
+
+  private static class AuditEntry {
+    private final NodeReference nodeReference;
+    private final String logEntry;
+    private final Calendar date;
+
+    AuditEntry(NodeReference nodeReference, String logEntry, Calendar date) {
+      this.nodeReference = nodeReference;
+      this.logEntry = logEntry;
+      this.date = date;
+    }
+  }
+}
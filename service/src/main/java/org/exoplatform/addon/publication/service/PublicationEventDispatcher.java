@@ -0,0 +1,300 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.picocontainer.Startable;
+
+/**
+ * Dispatches the listener events raised after a publication state change.
+ * Events are broadcasted in the caller thread unless asynchronous mode is
+ * enabled, in which case they are queued and broadcasted by a pool of workers.
+ * Each node is always handled by the same worker so that its events keep their
+ * order.
+ */
+@Managed
+@ManagedDescription("Dispatcher of publication state change events")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "eventDispatcher") })
+public class PublicationEventDispatcher implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(PublicationEventDispatcher.class.getName());
+
+  public static final String ASYNC_ENABLED_PARAM = "async.enabled";
+  public static final String WORKERS_PARAM = "async.workers";
+  public static final String QUEUE_CAPACITY_PARAM = "async.queue.capacity";
+  public static final String REJECTION_POLICY_PARAM = "async.rejection.policy";
+
+  /**
+   * Behavior when the queue of a worker is full.
+   */
+  public enum RejectionPolicy {
+    /**
+     * Broadcast the events in the caller thread, possibly before older events
+     * of the same node still queued
+     */
+    CALLER_RUNS,
+    /** Wait until the queue has room, keeping the order of the events */
+    BLOCK,
+    /** Drop the events */
+    DISCARD
+  }
+
+  /**
+   * Broadcasts the events of a state change for a node.
+   */
+  public interface EventTask {
+    void broadcast(Node node) throws Exception;
+  }
+
+  private final RepositoryService repositoryService;
+  private final ExoContainerContext containerContext;
+
+  private final boolean asyncEnabled;
+  private final int workersCount;
+  private final int queueCapacity;
+  private final RejectionPolicy rejectionPolicy;
+
+  private volatile Worker[] workers;
+  private volatile boolean running;
+
+  private final AtomicLong dispatchedCount = new AtomicLong();
+  private final AtomicLong callerRunsCount = new AtomicLong();
+  private final AtomicLong discardedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong totalLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+
+  public PublicationEventDispatcher(RepositoryService repositoryService, ExoContainerContext containerContext, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.containerContext = containerContext;
+    this.asyncEnabled = ServiceParams.getBoolean(params, ASYNC_ENABLED_PARAM, false);
+    this.workersCount = Math.max(1, ServiceParams.getInt(params, WORKERS_PARAM, 4));
+    this.queueCapacity = Math.max(1, ServiceParams.getInt(params, QUEUE_CAPACITY_PARAM, 1000));
+    this.rejectionPolicy = RejectionPolicy.valueOf(ServiceParams.getString(params, REJECTION_POLICY_PARAM, RejectionPolicy.BLOCK.name()).toUpperCase());
+  }
+
+  public void start() {
+    if (!asyncEnabled) {
+      return;
+    }
+    Worker[] startedWorkers = new Worker[workersCount];
+    for (int i = 0; i < workersCount; i++) {
+      startedWorkers[i] = new Worker(i);
+    }
+    // Publish the workers fully built, before they check the running flag
+    workers = startedWorkers;
+    running = true;
+    for (Worker worker : startedWorkers) {
+      worker.start();
+    }
+    LOG.info("Asynchronous publication events dispatcher started with " + workersCount + " workers, queue capacity " + queueCapacity + " and policy "
+        + rejectionPolicy);
+  }
+
+  public void stop() {
+    Worker[] currentWorkers = workers;
+    if (currentWorkers == null) {
+      return;
+    }
+    running = false;
+    for (Worker worker : currentWorkers) {
+      try {
+        // Let the worker drain its queue before leaving
+        worker.join(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (worker.isAlive()) {
+        LOG.warn("Publication events worker '" + worker.getName() + "' didn't finish in time, " + worker.queue.size() + " events are lost");
+        worker.interrupt();
+      }
+    }
+    workers = null;
+  }
+
+  /**
+   * Broadcasts the events of a state change, synchronously or asynchronously
+   * depending on the configuration.
+   * 
+   * @param node
+   *          the node which state has changed
+   * @param task
+   *          the broadcast to execute
+   * @throws Exception
+   *           if the events are broadcasted in the caller thread and a
+   *           listener fails
+   */
+  public void dispatch(Node node, EventTask task) throws Exception {
+    // Read once: stop may clear the workers concurrently
+    Worker[] currentWorkers = workers;
+    if (!running || currentWorkers == null) {
+      task.broadcast(node);
+      return;
+    }
+    NodeReference nodeReference = NodeReference.of(node);
+    QueuedEvent event = new QueuedEvent(nodeReference, task, ConversationState.getCurrent());
+    Worker worker = currentWorkers[(nodeReference.getKey().hashCode() & Integer.MAX_VALUE) % currentWorkers.length];
+    if (worker.queue.offer(event)) {
+      return;
+    }
+    switch (rejectionPolicy) {
+    case BLOCK:
+      while (!worker.queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+        if (!running) {
+          // Stopping: broadcast once the worker has drained the older events
+          worker.join(TimeUnit.SECONDS.toMillis(30));
+          callerRunsCount.incrementAndGet();
+          task.broadcast(node);
+          break;
+        }
+      }
+      break;
+    case DISCARD:
+      discardedCount.incrementAndGet();
+      LOG.warn("Publication events queue is full, events of '" + nodeReference + "' are discarded");
+      break;
+    default:
+      callerRunsCount.incrementAndGet();
+      task.broadcast(node);
+      break;
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Whether events are broadcasted asynchronously")
+  public boolean isAsyncEnabled() {
+    return asyncEnabled;
+  }
+
+  @Managed
+  @ManagedDescription("Number of events waiting to be broadcasted")
+  public int getQueueDepth() {
+    Worker[] currentWorkers = workers;
+    if (currentWorkers == null) {
+      return 0;
+    }
+    int depth = 0;
+    for (Worker worker : currentWorkers) {
+      depth += worker.queue.size();
+    }
+    return depth;
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes broadcasted by the workers")
+  public long getDispatchedCount() {
+    return dispatchedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes broadcasted in the caller thread because the queue was full")
+  public long getCallerRunsCount() {
+    return callerRunsCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes which events were discarded because the queue was full")
+  public long getDiscardedCount() {
+    return discardedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes which events broadcast failed in a worker")
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  @Managed
+  @ManagedDescription("Average time in milliseconds between the state change and the broadcast of its events")
+  public long getAverageLag() {
+    long count = dispatchedCount.get();
+    return count == 0 ? 0 : totalLag.get() / count;
+  }
+
+  @Managed
+  @ManagedDescription("Maximum time in milliseconds between the state change and the broadcast of its events")
+  public long getMaxLag() {
+    return maxLag.get();
+  }
+
+  private void execute(QueuedEvent event) {
+    long lag = System.currentTimeMillis() - event.creationTime;
+    totalLag.addAndGet(lag);
+    long currentMax = maxLag.get();
+    while (lag > currentMax && !maxLag.compareAndSet(currentMax, lag)) {
+      currentMax = maxLag.get();
+    }
+
+    ExoContainer container = containerContext.getContainer();
+    ExoContainerContext.setCurrentContainer(container);
+    ConversationState.setCurrent(event.conversationState);
+    RequestLifeCycle.begin(container);
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(event.nodeReference.getWorkspace(), repositoryService.getCurrentRepository());
+      event.task.broadcast(event.nodeReference.resolve(session));
+    } catch (Exception e) {
+      failedCount.incrementAndGet();
+      LOG.warn("Error while broadcasting publication events of '" + event.nodeReference + "'", e);
+    } finally {
+      dispatchedCount.incrementAndGet();
+      sessionProvider.close();
+      RequestLifeCycle.end();
+      ConversationState.setCurrent(null);
+    }
+  }
+
+  private static class QueuedEvent {
+    private final NodeReference nodeReference;
+    private final EventTask task;
+    private final ConversationState conversationState;
+    private final long creationTime = System.currentTimeMillis();
+
+    QueuedEvent(NodeReference nodeReference, EventTask task, ConversationState conversationState) {
+      this.nodeReference = nodeReference;
+      this.task = task;
+      this.conversationState = conversationState;
+    }
+  }
+
+  private class Worker extends Thread {
+    private final BlockingQueue<QueuedEvent> queue = new ArrayBlockingQueue<QueuedEvent>(queueCapacity);
+
+    Worker(int index) {
+      super("publication-events-" + index);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running || !queue.isEmpty()) {
+        try {
+          QueuedEvent event = queue.poll(1, TimeUnit.SECONDS);
+          if (event != null) {
+            execute(event);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,847 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.picocontainer.Startable;
+
+/**
+ * In-memory index of the publication state of the contents of a workspace,
+ * answering state based listings without querying the repository. The index
+ * is built in background at startup by scanning the children of a path in
+ * parallel, then updated by the publication plugin after each state change.
+ * <p>
+ * Entries are stored in parallel arrays: UUIDs and live revisions are stored
+ * as two longs when they are hexadecimal identifiers, paths as an interned
+ * folder and a name, states and last users are interned and stored as numbers.
+ * Each state keeps the set of its entries, so that listings only visit the
+ * contents in the requested state. Entries of removed nodes are dropped when
+ * the repository notifies their removal; moved contents, which are notified as
+ * removed from their old path, are then indexed again at their new path.
+ */
+@Managed
+@ManagedDescription("In-memory index of publication states")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "stateIndex") })
+public class PublicationStateIndex implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(PublicationStateIndex.class.getName());
+
+  public static final String ENABLED_PARAM = "enabled";
+  public static final String WORKSPACE_PARAM = "workspace";
+  public static final String SCAN_PATH_PARAM = "scan.path";
+  public static final String SCAN_THREADS_PARAM = "scan.threads";
+  public static final String PAGE_SIZE_PARAM = "page.size";
+
+  private static final String MIX_REFERENCEABLE = "mix:referenceable";
+  private static final String LAST_USER_PROP = "publication:lastUser";
+  private static final String JCR_UUID_PROP = "jcr:uuid";
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int NONE = -1;
+  /** State ids are stored as unsigned bytes, the last value is reserved */
+  private static final int MAX_STATES = 255;
+  private static final int HEX_ID_LENGTH = 32;
+
+  private static final byte FOLDER_EXCLUDED = 0;
+  private static final byte FOLDER_INCLUDED = 1;
+  private static final byte FOLDER_CHECK_NAMES = 2;
+
+  private final RepositoryService repositoryService;
+  private final PublicationManager publicationManager;
+  private final ExoContainerContext containerContext;
+
+  private final boolean enabled;
+  private final String workspace;
+  private final String scanPath;
+  private final int scanThreads;
+  private final int pageSize;
+
+  private Session observationSession;
+  private EventListener removalListener;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  /** Open addressing table of the slots of hexadecimal UUIDs, slot + 1 or 0 if free */
+  private int[] uuidTable = new int[INITIAL_CAPACITY * 2];
+  private final Map<String, Integer> nonHexSlots = new HashMap<String, Integer>();
+  private final Map<Integer, String> nonHexLiveRevisions = new HashMap<Integer, String>();
+  private final Interner states = new Interner();
+  private final Interner users = new Interner();
+  private final Interner folders = new Interner();
+  /** Slots of the contents in each state, by state id */
+  private final List<BitSet> stateSlots = new ArrayList<BitSet>();
+  /** Slots of removed contents, reused by the next added ones */
+  private final BitSet freeSlots = new BitSet();
+  private long[] uuidsHigh = new long[INITIAL_CAPACITY];
+  private long[] uuidsLow = new long[INITIAL_CAPACITY];
+  private int[] folderIds = new int[INITIAL_CAPACITY];
+  private String[] names = new String[INITIAL_CAPACITY];
+  private byte[] stateIds = new byte[INITIAL_CAPACITY];
+  private int[] userIds = new int[INITIAL_CAPACITY];
+  private long[] liveRevisionsHigh = new long[INITIAL_CAPACITY];
+  private long[] liveRevisionsLow = new long[INITIAL_CAPACITY];
+  private int size;
+
+  private volatile boolean ready;
+  private final AtomicInteger runningScans = new AtomicInteger();
+  private final AtomicLong scannedNodes = new AtomicLong();
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+
+  public PublicationStateIndex(RepositoryService repositoryService, PublicationManager publicationManager, ExoContainerContext containerContext,
+      InitParams params) {
+    this.repositoryService = repositoryService;
+    this.publicationManager = publicationManager;
+    this.containerContext = containerContext;
+    this.enabled = ServiceParams.getBoolean(params, ENABLED_PARAM, false);
+    this.workspace = ServiceParams.getString(params, WORKSPACE_PARAM, "collaboration");
+    this.scanPath = ServiceParams.getString(params, SCAN_PATH_PARAM, "/sites");
+    this.scanThreads = Math.max(1, ServiceParams.getInt(params, SCAN_THREADS_PARAM, 4));
+    this.pageSize = Math.max(1, ServiceParams.getInt(params, PAGE_SIZE_PARAM, 500));
+  }
+
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      observationSession = repositoryService.getCurrentRepository().getSystemSession(workspace);
+      removalListener = new EventListener() {
+        public void onEvent(EventIterator events) {
+          onRemoval(events);
+        }
+      };
+      observationSession.getWorkspace()
+                        .getObservationManager()
+                        .addEventListener(removalListener, Event.NODE_REMOVED, scanPath, true, null, null, false);
+    } catch (RepositoryException e) {
+      throw new IllegalStateException("Can't observe removals in '" + workspace + ":" + scanPath + "'", e);
+    }
+    rebuild();
+  }
+
+  public void stop() {
+    ready = false;
+    if (observationSession != null) {
+      try {
+        observationSession.getWorkspace().getObservationManager().removeEventListener(removalListener);
+      } catch (RepositoryException e) {
+        LOG.debug("Can't remove the removal listener of the publication state index", e);
+      }
+      observationSession.logout();
+      observationSession = null;
+    }
+  }
+
+  /**
+   * Clears the index and scans the repository again in background.
+   *
+   * @return a status message
+   */
+  @Managed
+  @ManagedDescription("Clears the index and scans the repository again")
+  public synchronized String rebuild() {
+    if (!enabled) {
+      return "The index is disabled";
+    }
+    if (runningScans.get() > 0) {
+      return "A scan is already running";
+    }
+    lock.writeLock().lock();
+    try {
+      Arrays.fill(uuidTable, 0);
+      nonHexSlots.clear();
+      nonHexLiveRevisions.clear();
+      folders.clear();
+      users.clear();
+      for (BitSet slots : stateSlots) {
+        slots.clear();
+      }
+      freeSlots.clear();
+      Arrays.fill(names, 0, size, null);
+      size = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    ready = false;
+    scannedNodes.set(0);
+    runningScans.incrementAndGet();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        ExoContainer container = containerContext.getContainer();
+        ExoContainerContext.setCurrentContainer(container);
+        RequestLifeCycle.begin(container);
+        try {
+          scan();
+          ready = true;
+          LOG.info("Publication state index built with " + getSize() + " contents");
+        } catch (Exception e) {
+          LOG.error("Can't build the publication state index", e);
+        } finally {
+          RequestLifeCycle.end();
+          runningScans.decrementAndGet();
+        }
+      }
+    }, "publication-state-index");
+    thread.setDaemon(true);
+    thread.start();
+    return "Scan of '" + workspace + ":" + scanPath + "' started";
+  }
+
+  /**
+   * Updates the entry of a node from its publication properties.
+   *
+   * @param node
+   *          the node which state has changed
+   * @throws RepositoryException
+   *           if the properties can't be read
+   */
+  public void update(Node node) throws RepositoryException {
+    if (!enabled || !workspace.equals(node.getSession().getWorkspace().getName())) {
+      return;
+    }
+    if (put(node, true)) {
+      updates.incrementAndGet();
+    }
+  }
+
+  /**
+   * Lists the paths of the contents in a state.
+   *
+   * @param state
+   *          the publication state
+   * @param pathPrefix
+   *          the path of the content or folder under which contents are
+   *          searched, null for all
+   * @param offset
+   *          the number of matching contents to skip
+   * @param limit
+   *          the maximum number of paths to return
+   * @return the paths
+   */
+  public List<String> getPaths(String state, String pathPrefix, int offset, int limit) {
+    List<String> result = new ArrayList<String>();
+    lock.readLock().lock();
+    try {
+      int stateId = states.get(state);
+      if (stateId == NONE) {
+        return result;
+      }
+      BitSet slots = stateSlots.get(stateId);
+      byte[] folderMatches = getFolderMatches(pathPrefix);
+      int skipped = 0;
+      for (int slot = slots.nextSetBit(0); slot >= 0 && result.size() < limit; slot = slots.nextSetBit(slot + 1)) {
+        if (matches(slot, pathPrefix, folderMatches) && skipped++ >= offset) {
+          result.add(getPath(slot));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * @param state
+   *          the publication state
+   * @param pathPrefix
+   *          the path of the content or folder under which contents are
+   *          searched, null for all
+   * @return the number of contents in the state
+   */
+  @Managed
+  @ManagedDescription("Counts the contents in a state under a path")
+  public int count(@ManagedDescription("Publication state") @ManagedName("state") String state,
+      @ManagedDescription("Path prefix") @ManagedName("path") String pathPrefix) {
+    lock.readLock().lock();
+    try {
+      int stateId = states.get(state);
+      if (stateId == NONE) {
+        return 0;
+      }
+      BitSet slots = stateSlots.get(stateId);
+      if (pathPrefix == null) {
+        return slots.cardinality();
+      }
+      byte[] folderMatches = getFolderMatches(pathPrefix);
+      int count = 0;
+      for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+        if (matches(slot, pathPrefix, folderMatches)) {
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param uuid
+   *          the UUID of the content
+   * @return the state of the content, null if it isn't indexed
+   */
+  public String getState(String uuid) {
+    lock.readLock().lock();
+    try {
+      int slot = getSlot(uuid);
+      return slot == NONE ? null : states.getValue(stateIds[slot] & 0xFF);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param uuid
+   *          the UUID of the content
+   * @return the UUID of the live version of the content, null if it has none
+   *         or isn't indexed
+   */
+  public String getLiveRevision(String uuid) {
+    lock.readLock().lock();
+    try {
+      int slot = getSlot(uuid);
+      if (slot == NONE) {
+        return null;
+      }
+      if (nonHexLiveRevisions.containsKey(slot)) {
+        return nonHexLiveRevisions.get(slot);
+      }
+      if (liveRevisionsHigh[slot] == 0 && liveRevisionsLow[slot] == 0) {
+        return null;
+      }
+      return toHex(liveRevisionsHigh[slot]) + toHex(liveRevisionsLow[slot]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param uuid
+   *          the UUID of the content
+   * @return the last user who changed the state of the content, null if
+   *         unknown
+   */
+  public String getLastUser(String uuid) {
+    lock.readLock().lock();
+    try {
+      int slot = getSlot(uuid);
+      return slot == NONE ? null : users.getValue(userIds[slot]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Whether the initial scan is done")
+  public boolean isReady() {
+    return ready;
+  }
+
+  @Managed
+  @ManagedDescription("Number of indexed contents")
+  public int getSize() {
+    lock.readLock().lock();
+    try {
+      return size - freeSlots.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Number of contents read by the last scan")
+  public long getScannedNodes() {
+    return scannedNodes.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries updated after a state change")
+  public long getUpdates() {
+    return updates.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of entries removed after the removal or the move of their node")
+  public long getRemovals() {
+    return removals.get();
+  }
+
+  private String getPath(int slot) {
+    return folders.getValue(folderIds[slot]) + "/" + names[slot];
+  }
+
+  /**
+   * @return for each folder id, whether its contents are the node at the
+   *         prefix path or its descendants, or null if there is no prefix
+   */
+  private byte[] getFolderMatches(String pathPrefix) {
+    if (pathPrefix == null) {
+      return null;
+    }
+    String prefixFolder = toFolderPath(pathPrefix);
+    byte[] folderMatches = new byte[folders.size()];
+    for (int folderId = 0; folderId < folderMatches.length; folderId++) {
+      String folderPath = folders.getValue(folderId) + "/";
+      if (folderPath.startsWith(prefixFolder)) {
+        folderMatches[folderId] = FOLDER_INCLUDED;
+      } else if (prefixFolder.startsWith(folderPath)) {
+        // The prefix is a content of the folder or one of its descendants
+        folderMatches[folderId] = FOLDER_CHECK_NAMES;
+      } else {
+        folderMatches[folderId] = FOLDER_EXCLUDED;
+      }
+    }
+    return folderMatches;
+  }
+
+  private boolean matches(int slot, String pathPrefix, byte[] folderMatches) {
+    if (folderMatches == null) {
+      return true;
+    }
+    byte folderMatch = folderMatches[folderIds[slot]];
+    if (folderMatch != FOLDER_CHECK_NAMES) {
+      return folderMatch == FOLDER_INCLUDED;
+    }
+    String path = getPath(slot) + "/";
+    return path.startsWith(toFolderPath(pathPrefix));
+  }
+
+  /**
+   * @return the path ending with a slash, so that it only matches itself and
+   *         its descendants as a prefix
+   */
+  private static String toFolderPath(String path) {
+    return path.endsWith("/") ? path : path + "/";
+  }
+
+  /**
+   * Removes the entries of the removed nodes and of their descendants, then
+   * indexes again the ones which still exist: they have been moved.
+   */
+  private void onRemoval(EventIterator events) {
+    List<String> removedUUIDs = new ArrayList<String>();
+    try {
+      while (events.hasNext()) {
+        removedUUIDs.addAll(remove(events.nextEvent().getPath()));
+      }
+      if (removedUUIDs.isEmpty()) {
+        return;
+      }
+      removals.addAndGet(removedUUIDs.size());
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try {
+        Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+        String scanFolder = toFolderPath(scanPath);
+        for (String uuid : removedUUIDs) {
+          try {
+            Node node = session.getNodeByUUID(uuid);
+            if (toFolderPath(node.getPath()).startsWith(scanFolder)) {
+              put(node, true);
+            }
+          } catch (ItemNotFoundException e) {
+            continue;
+          }
+        }
+      } finally {
+        sessionProvider.close();
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Can't update the publication state index after the removal of " + removedUUIDs.size() + " contents", e);
+    }
+  }
+
+  /**
+   * Removes the entries of a node and of its descendants.
+   *
+   * @return the UUIDs of the removed entries
+   */
+  private List<String> remove(String path) {
+    List<String> removedUUIDs = new ArrayList<String>();
+    lock.writeLock().lock();
+    try {
+      byte[] folderMatches = getFolderMatches(path);
+      boolean candidates = false;
+      for (byte folderMatch : folderMatches) {
+        candidates |= folderMatch != FOLDER_EXCLUDED;
+      }
+      if (!candidates) {
+        return removedUUIDs;
+      }
+      for (int slot = 0; slot < size; slot++) {
+        if (!freeSlots.get(slot) && matches(slot, path, folderMatches)) {
+          removedUUIDs.add(removeSlot(slot));
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return removedUUIDs;
+  }
+
+  /**
+   * Indexes a node.
+   *
+   * @param overwrite
+   *          false when scanning, so that entries updated after a state change
+   *          aren't replaced by older values read by the scan
+   * @return true if the node has been indexed
+   */
+  private boolean put(Node node, boolean overwrite) throws RepositoryException {
+    if (!node.isNodeType(MIX_REFERENCEABLE) || !node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE)) {
+      return false;
+    }
+    String uuid = node.getUUID();
+    String path = node.getPath();
+    String state = node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString();
+    String liveRevision = node.hasProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP) ? node.getProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP)
+                                                                                                  .getString() : null;
+    String lastUser = node.hasProperty(LAST_USER_PROP) ? node.getProperty(LAST_USER_PROP).getString() : null;
+    int nameIndex = path.lastIndexOf('/');
+
+    lock.writeLock().lock();
+    try {
+      int stateId = states.get(state);
+      if (stateId == NONE) {
+        if (states.size() == MAX_STATES) {
+          LOG.warn("Can't index '" + path + "': more than " + MAX_STATES + " publication states");
+          return false;
+        }
+        stateId = states.intern(state);
+        stateSlots.add(new BitSet());
+      }
+      int slot = getSlot(uuid);
+      if (slot == NONE) {
+        slot = addSlot(uuid);
+      } else if (!overwrite) {
+        return false;
+      } else {
+        stateSlots.get(stateIds[slot] & 0xFF).clear(slot);
+      }
+      folderIds[slot] = folders.intern(path.substring(0, nameIndex));
+      names[slot] = path.substring(nameIndex + 1);
+      stateIds[slot] = (byte) stateId;
+      stateSlots.get(stateId).set(slot);
+      userIds[slot] = lastUser == null ? NONE : users.intern(lastUser);
+      setLiveRevision(slot, liveRevision);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the slot of the content, or {@link #NONE} if it isn't indexed
+   */
+  private int getSlot(String uuid) {
+    if (!isHexId(uuid)) {
+      Integer slot = nonHexSlots.get(uuid);
+      return slot == null ? NONE : slot;
+    }
+    long high = parseHex(uuid, 0);
+    long low = parseHex(uuid, 16);
+    int mask = uuidTable.length - 1;
+    for (int index = hash(high, low) & mask; uuidTable[index] != 0; index = (index + 1) & mask) {
+      int slot = uuidTable[index] - 1;
+      if (uuidsHigh[slot] == high && uuidsLow[slot] == low) {
+        return slot;
+      }
+    }
+    return NONE;
+  }
+
+  private int addSlot(String uuid) {
+    int slot = freeSlots.nextSetBit(0);
+    if (slot >= 0) {
+      freeSlots.clear(slot);
+    } else {
+      ensureCapacity(size + 1);
+      slot = size++;
+    }
+    if (!isHexId(uuid)) {
+      nonHexSlots.put(uuid, slot);
+      return slot;
+    }
+    uuidsHigh[slot] = parseHex(uuid, 0);
+    uuidsLow[slot] = parseHex(uuid, 16);
+    if (size * 2 > uuidTable.length) {
+      // Keep the table at most half full
+      int[] oldTable = uuidTable;
+      uuidTable = new int[oldTable.length * 2];
+      for (int entry : oldTable) {
+        if (entry != 0) {
+          addToUUIDTable(entry - 1);
+        }
+      }
+    }
+    addToUUIDTable(slot);
+    return slot;
+  }
+
+  private void addToUUIDTable(int slot) {
+    int mask = uuidTable.length - 1;
+    int index = hash(uuidsHigh[slot], uuidsLow[slot]) & mask;
+    while (uuidTable[index] != 0) {
+      index = (index + 1) & mask;
+    }
+    uuidTable[index] = slot + 1;
+  }
+
+  /**
+   * Frees the slot of a content.
+   *
+   * @return the UUID of the content
+   */
+  private String removeSlot(int slot) {
+    String uuid = null;
+    for (Map.Entry<String, Integer> entry : nonHexSlots.entrySet()) {
+      if (entry.getValue() == slot) {
+        uuid = entry.getKey();
+        break;
+      }
+    }
+    if (uuid == null) {
+      uuid = toHex(uuidsHigh[slot]) + toHex(uuidsLow[slot]);
+      removeFromUUIDTable(slot);
+    } else {
+      nonHexSlots.remove(uuid);
+    }
+    stateSlots.get(stateIds[slot] & 0xFF).clear(slot);
+    nonHexLiveRevisions.remove(slot);
+    names[slot] = null;
+    freeSlots.set(slot);
+    return uuid;
+  }
+
+  /**
+   * Removes a slot from the UUID table, moving back the following entries of
+   * its cluster so that lookups don't stop at the freed entry.
+   */
+  private void removeFromUUIDTable(int slot) {
+    int mask = uuidTable.length - 1;
+    int free = hash(uuidsHigh[slot], uuidsLow[slot]) & mask;
+    while (uuidTable[free] != slot + 1) {
+      free = (free + 1) & mask;
+    }
+    for (int index = (free + 1) & mask; uuidTable[index] != 0; index = (index + 1) & mask) {
+      int entrySlot = uuidTable[index] - 1;
+      int home = hash(uuidsHigh[entrySlot], uuidsLow[entrySlot]) & mask;
+      // Entries which home is cyclically in (free, index] stay in place
+      boolean stays = free <= index ? (home > free && home <= index) : (home > free || home <= index);
+      if (!stays) {
+        uuidTable[free] = uuidTable[index];
+        free = index;
+      }
+    }
+    uuidTable[free] = 0;
+  }
+
+  private static int hash(long high, long low) {
+    long hash = (high ^ low) * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private void setLiveRevision(int slot, String liveRevision) {
+    nonHexLiveRevisions.remove(slot);
+    liveRevisionsHigh[slot] = 0;
+    liveRevisionsLow[slot] = 0;
+    if (liveRevision == null || liveRevision.length() == 0) {
+      return;
+    }
+    if (isHexId(liveRevision)) {
+      liveRevisionsHigh[slot] = parseHex(liveRevision, 0);
+      liveRevisionsLow[slot] = parseHex(liveRevision, 16);
+    } else {
+      nonHexLiveRevisions.put(slot, liveRevision);
+    }
+  }
+
+  private static boolean isHexId(String value) {
+    if (value.length() != HEX_ID_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < HEX_ID_LENGTH; i++) {
+      if (Character.digit(value.charAt(i), 16) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long parseHex(String value, int start) {
+    return (Long.parseLong(value.substring(start, start + 8), 16) << 32) | Long.parseLong(value.substring(start + 8, start + 16), 16);
+  }
+
+  private static String toHex(long value) {
+    String hex = Long.toHexString(value);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= names.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, names.length * 2);
+    uuidsHigh = Arrays.copyOf(uuidsHigh, newCapacity);
+    uuidsLow = Arrays.copyOf(uuidsLow, newCapacity);
+    folderIds = Arrays.copyOf(folderIds, newCapacity);
+    names = Arrays.copyOf(names, newCapacity);
+    stateIds = Arrays.copyOf(stateIds, newCapacity);
+    userIds = Arrays.copyOf(userIds, newCapacity);
+    liveRevisionsHigh = Arrays.copyOf(liveRevisionsHigh, newCapacity);
+    liveRevisionsLow = Arrays.copyOf(liveRevisionsLow, newCapacity);
+  }
+
+  /**
+   * Scans each child of the scan path with a separate worker.
+   */
+  private void scan() throws Exception {
+    final String lifecycleCondition = VersionHistoryPurgeService.getLifecycleCondition(publicationManager);
+    if (lifecycleCondition == null) {
+      return;
+    }
+    List<String> subtrees = new ArrayList<String>();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      if (!session.itemExists(scanPath)) {
+        return;
+      }
+      NodeIterator children = ((Node) session.getItem(scanPath)).getNodes();
+      while (children.hasNext()) {
+        subtrees.add(children.nextNode().getPath());
+      }
+    } finally {
+      sessionProvider.close();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(scanThreads);
+    final ExoContainer container = containerContext.getContainer();
+    for (final String subtree : subtrees) {
+      executor.execute(new Runnable() {
+        public void run() {
+          ExoContainerContext.setCurrentContainer(container);
+          RequestLifeCycle.begin(container);
+          try {
+            String statement = "SELECT * FROM " + AuthoringPublicationConstant.PUBLICATION_LIFECYCLE_TYPE + " WHERE "
+                + VersionHistoryPurgeService.getSubtreeCondition(subtree) + " AND " + lifecycleCondition + " AND " + JCR_UUID_PROP + " IS NOT NULL";
+            String lastUUID = null;
+            do {
+              lastUUID = scanPage(statement, lastUUID);
+            } while (lastUUID != null);
+          } catch (Exception e) {
+            LOG.warn("Can't index publication states of '" + subtree + "'", e);
+          } finally {
+            RequestLifeCycle.end();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Indexes one page of contents using a new session. Pages are ordered by
+   * UUID and start after the last UUID of the previous page.
+   *
+   * @return the UUID of the last content of the page, or null if no content
+   *         remains
+   */
+  private String scanPage(String statement, String lastUUID) throws Exception {
+    if (lastUUID != null) {
+      statement += " AND " + JCR_UUID_PROP + " > '" + lastUUID.replace("'", "''") + "'";
+    }
+    statement += " ORDER BY " + JCR_UUID_PROP;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(statement, Query.SQL);
+      query.setLimit(pageSize);
+      NodeIterator nodes = query.execute().getNodes();
+      int count = 0;
+      String pageLastUUID = null;
+      while (nodes.hasNext()) {
+        Node node = nodes.nextNode();
+        count++;
+        pageLastUUID = node.getUUID();
+        put(node, false);
+        scannedNodes.incrementAndGet();
+      }
+      return count == pageSize ? pageLastUUID : null;
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Maps values to small numbers, guarded by the lock of the index.
+   */
+  private static class Interner {
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> values = new ArrayList<String>();
+
+    int intern(String value) {
+      Integer id = ids.get(value);
+      if (id == null) {
+        id = values.size();
+        values.add(value);
+        ids.put(value, id);
+      }
+      return id;
+    }
+
+    int get(String value) {
+      Integer id = ids.get(value);
+      return id == null ? NONE : id;
+    }
+
+    String getValue(int id) {
+      return id == NONE ? null : values.get(id);
+    }
+
+    int size() {
+      return values.size();
+    }
+
+    void clear() {
+      ids.clear();
+      values.clear();
+    }
+  }
+}
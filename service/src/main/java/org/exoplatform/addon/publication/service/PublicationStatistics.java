@@ -0,0 +1,222 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+
+/**
+ * Timers and counters of the publication plugin. When disabled, timers are not
+ * started and nothing is recorded.
+ */
+@Managed
+@ManagedDescription("Statistics of the authoring publication")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "statistics") })
+public class PublicationStatistics {
+
+  public static final String ENABLED_PARAM = "enabled";
+
+  /**
+   * Measured phases of the publication.
+   */
+  public enum Phase {
+    TRANSITION, ADD_MIXIN, SAVE, DELETE_VERSIONS, CHECKIN, REVISION_DATA, LISTENERS, NODE_VIEW_LIVE, NODE_VIEW_EDIT, FINGERPRINT
+  }
+
+  /** Upper bounds in microseconds of the histogram buckets, the last bucket is unbounded */
+  private static final long[] BUCKET_BOUNDS = { 100, 1000, 10000, 100000, 1000000 };
+
+  private volatile boolean enabled;
+
+  private final Timer[] timers = new Timer[Phase.values().length];
+  private final AtomicLong versionsRemoved = new AtomicLong();
+  private final AtomicLong revisionDataBytes = new AtomicLong();
+  private final AtomicLong unchangedPublications = new AtomicLong();
+
+  public PublicationStatistics(InitParams params) {
+    this.enabled = ServiceParams.getBoolean(params, ENABLED_PARAM, false);
+    for (Phase phase : Phase.values()) {
+      timers[phase.ordinal()] = new Timer();
+    }
+  }
+
+  /**
+   * @return the start time of a phase to pass to {@link #end(Phase, long)}, or
+   *         0 if statistics are disabled
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records the duration of a phase.
+   * 
+   * @param phase
+   *          the phase
+   * @param startTime
+   *          the value returned by {@link #start()}
+   */
+  public void end(Phase phase, long startTime) {
+    if (startTime != 0 && enabled) {
+      timers[phase.ordinal()].record(System.nanoTime() - startTime);
+    }
+  }
+
+  public void addVersionsRemoved(long count) {
+    if (enabled) {
+      versionsRemoved.addAndGet(count);
+    }
+  }
+
+  public void addUnchangedPublication() {
+    if (enabled) {
+      unchangedPublications.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param length
+   *          number of characters of revision data written
+   */
+  public void addRevisionDataBytes(long length) {
+    if (enabled) {
+      // Revision data is ASCII: one byte per character
+      revisionDataBytes.addAndGet(length);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Whether statistics are collected")
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Managed
+  @ManagedDescription("Enables or disables statistics collection")
+  public void setEnabled(@ManagedDescription("true to collect statistics") boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Managed
+  @ManagedDescription("Number of state changes")
+  public long getTransitions() {
+    return timers[Phase.TRANSITION.ordinal()].getCount();
+  }
+
+  @Managed
+  @ManagedDescription("Average duration of a state change in microseconds")
+  public long getAverageTransitionTime() {
+    return timers[Phase.TRANSITION.ordinal()].getAverage();
+  }
+
+  @Managed
+  @ManagedDescription("Average number of session saves per state change")
+  public double getSavesPerTransition() {
+    long transitions = getTransitions();
+    return transitions == 0 ? 0 : (double) timers[Phase.SAVE.ordinal()].getCount() / transitions;
+  }
+
+  @Managed
+  @ManagedDescription("Number of versions deleted during publication")
+  public long getVersionsRemoved() {
+    return versionsRemoved.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of bytes of revision data written")
+  public long getRevisionDataBytes() {
+    return revisionDataBytes.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of publications of contents unchanged since their live version")
+  public long getUnchangedPublications() {
+    return unchangedPublications.get();
+  }
+
+  @Managed
+  @ManagedDescription("Average duration of listeners broadcast in microseconds")
+  public long getAverageListenersTime() {
+    return timers[Phase.LISTENERS.ordinal()].getAverage();
+  }
+
+  @Managed
+  @ManagedDescription("Average duration of getNodeView in live mode in microseconds")
+  public long getAverageNodeViewLiveTime() {
+    return timers[Phase.NODE_VIEW_LIVE.ordinal()].getAverage();
+  }
+
+  @Managed
+  @ManagedDescription("Average duration of getNodeView in edit mode in microseconds")
+  public long getAverageNodeViewEditTime() {
+    return timers[Phase.NODE_VIEW_EDIT.ordinal()].getAverage();
+  }
+
+  @Managed
+  @ManagedDescription("Count, average, maximum and histogram of durations in microseconds of each phase")
+  public String getPhaseStatistics() {
+    StringBuilder statistics = new StringBuilder("phase,count,average,max");
+    for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+      statistics.append(i < BUCKET_BOUNDS.length ? ",<" + BUCKET_BOUNDS[i] : ",>=" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]);
+    }
+    for (Phase phase : Phase.values()) {
+      Timer timer = timers[phase.ordinal()];
+      statistics.append('\n').append(phase.name()).append(',').append(timer.getCount()).append(',').append(timer.getAverage()).append(',').append(timer.getMax());
+      for (int i = 0; i <= BUCKET_BOUNDS.length; i++) {
+        statistics.append(',').append(timer.buckets.get(i));
+      }
+    }
+    return statistics.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Resets the statistics")
+  public void reset() {
+    for (Phase phase : Phase.values()) {
+      timers[phase.ordinal()] = new Timer();
+    }
+    versionsRemoved.set(0);
+    revisionDataBytes.set(0);
+    unchangedPublications.set(0);
+  }
+
+  private static class Timer {
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    void record(long durationNanos) {
+      long duration = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+      count.incrementAndGet();
+      total.addAndGet(duration);
+      long currentMax = max.get();
+      while (duration > currentMax && !max.compareAndSet(currentMax, duration)) {
+        currentMax = max.get();
+      }
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS.length && duration >= BUCKET_BOUNDS[bucket]) {
+        bucket++;
+      }
+      buckets.incrementAndGet(bucket);
+    }
+
+    long getCount() {
+      return count.get();
+    }
+
+    long getAverage() {
+      long currentCount = count.get();
+      return currentCount == 0 ? 0 : total.get() / currentCount;
+    }
+
+    long getMax() {
+      return max.get();
+    }
+  }
+}
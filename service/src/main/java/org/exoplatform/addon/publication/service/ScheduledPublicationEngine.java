@@ -0,0 +1,444 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.addon.publication.lifecycle.BatchStateChangeResult;
+import org.exoplatform.commons.utils.ISO8601;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.exoplatform.services.wcm.publication.WCMPublicationService;
+import org.picocontainer.Startable;
+
+/**
+ * Publishes and unpublishes contents at the dates stored in their
+ * <code>publication:startPublishedDate</code> and
+ * <code>publication:endPublishedDate</code> properties. Transitions due within
+ * the loading horizon are read from the repository with a date range query and
+ * kept in buckets of one tick; all transitions of a tick are applied as one
+ * batch. Since the dates are stored on the contents, a restart only reloads
+ * the transitions due within the horizon. Only contents using a lifecycle of
+ * the authoring publication plugin are loaded.
+ */
+@Managed
+@ManagedDescription("Scheduled publication of contents")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "scheduledPublication") })
+public class ScheduledPublicationEngine implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(ScheduledPublicationEngine.class.getName());
+
+  public static final String ENABLED_PARAM = "enabled";
+  public static final String WORKSPACE_PARAM = "workspace";
+  public static final String TICK_PARAM = "tick";
+  public static final String HORIZON_PARAM = "horizon";
+  public static final String PAGE_SIZE_PARAM = "page.size";
+
+  public static final String START_DATE_PROP = "publication:startPublishedDate";
+  public static final String END_DATE_PROP = "publication:endPublishedDate";
+
+  private static final String JCR_UUID_PROP = "jcr:uuid";
+
+  private final RepositoryService repositoryService;
+  private final PublicationManager publicationManager;
+  private final WCMPublicationService wcmPublicationService;
+  private final ExoContainerContext containerContext;
+
+  private final boolean enabled;
+  private final String workspace;
+  private final long tick;
+  private final long horizon;
+  private final int pageSize;
+
+  /** Scheduled transitions by tick index */
+  private final SortedMap<Long, List<ScheduledTransition>> wheel = new TreeMap<Long, List<ScheduledTransition>>();
+  /** Scheduled transitions by key, a content has one transition per target state */
+  private final Map<String, ScheduledTransition> scheduledTransitions = new HashMap<String, ScheduledTransition>();
+
+  private ScheduledExecutorService executor;
+
+  private final AtomicLong transitionsApplied = new AtomicLong();
+  private final AtomicLong transitionsFailed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong totalLag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+
+  public ScheduledPublicationEngine(RepositoryService repositoryService, PublicationManager publicationManager, WCMPublicationService wcmPublicationService,
+      ExoContainerContext containerContext, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.publicationManager = publicationManager;
+    this.wcmPublicationService = wcmPublicationService;
+    this.containerContext = containerContext;
+    this.enabled = ServiceParams.getBoolean(params, ENABLED_PARAM, false);
+    this.workspace = ServiceParams.getString(params, WORKSPACE_PARAM, "collaboration");
+    this.tick = Math.max(100, ServiceParams.getLong(params, TICK_PARAM, 1000));
+    this.horizon = Math.max(tick * 2, ServiceParams.getLong(params, HORIZON_PARAM, 600000));
+    this.pageSize = Math.max(1, ServiceParams.getInt(params, PAGE_SIZE_PARAM, 500));
+  }
+
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "publication-scheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        runInContainer(new Runnable() {
+          public void run() {
+            loadTransitions();
+          }
+        });
+      }
+    }, 0, horizon / 2, TimeUnit.MILLISECONDS);
+    executor.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        runInContainer(new Runnable() {
+          public void run() {
+            fireDueTransitions();
+          }
+        });
+      }
+    }, tick, tick, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Sets the publication and unpublication dates of a content and schedules
+   * them if they are due within the loading horizon.
+   * 
+   * @param node
+   *          the content
+   * @param startDate
+   *          the publication date, null to keep the current one
+   * @param endDate
+   *          the unpublication date, null to keep the current one
+   * @throws Exception
+   *           if the dates can't be saved
+   */
+  public void schedule(Node node, Calendar startDate, Calendar endDate) throws Exception {
+    if (startDate != null) {
+      node.setProperty(START_DATE_PROP, startDate);
+    }
+    if (endDate != null) {
+      node.setProperty(END_DATE_PROP, endDate);
+    }
+    node.save();
+    if (!enabled) {
+      return;
+    }
+    NodeReference nodeReference = NodeReference.of(node);
+    long limit = System.currentTimeMillis() + horizon;
+    if (startDate != null) {
+      scheduleTransition(new ScheduledTransition(nodeReference, startDate.getTimeInMillis(), PublicationDefaultStates.PUBLISHED), limit);
+    }
+    if (endDate != null) {
+      scheduleTransition(new ScheduledTransition(nodeReference, endDate.getTimeInMillis(), PublicationDefaultStates.UNPUBLISHED), limit);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Number of transitions waiting for their date")
+  public synchronized int getPendingTransitions() {
+    return scheduledTransitions.size();
+  }
+
+  @Managed
+  @ManagedDescription("Number of scheduled transitions applied")
+  public long getTransitionsApplied() {
+    return transitionsApplied.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of scheduled transitions that failed")
+  public long getTransitionsFailed() {
+    return transitionsFailed.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of batches of transitions applied")
+  public long getBatches() {
+    return batches.get();
+  }
+
+  @Managed
+  @ManagedDescription("Average delay in milliseconds between the scheduled date and the transition")
+  public long getAverageLag() {
+    long count = transitionsApplied.get() + transitionsFailed.get();
+    return count == 0 ? 0 : totalLag.get() / count;
+  }
+
+  @Managed
+  @ManagedDescription("Maximum delay in milliseconds between the scheduled date and the transition")
+  public long getMaxLag() {
+    return maxLag.get();
+  }
+
+  /**
+   * Schedules a transition due within the loading horizon. A transition moved
+   * after the horizon is unscheduled, it will be loaded again later.
+   */
+  private synchronized void scheduleTransition(ScheduledTransition transition, long limit) {
+    if (transition.dueTime <= limit) {
+      addTransition(transition);
+    } else {
+      ScheduledTransition previousTransition = scheduledTransitions.remove(transition.getKey());
+      if (previousTransition != null) {
+        removeFromWheel(previousTransition);
+      }
+    }
+  }
+
+  /**
+   * Schedules a transition, replacing the one scheduled for the same content
+   * and target state at another date.
+   */
+  private synchronized void addTransition(ScheduledTransition transition) {
+    ScheduledTransition previousTransition = scheduledTransitions.put(transition.getKey(), transition);
+    if (previousTransition != null) {
+      if (previousTransition.dueTime == transition.dueTime) {
+        scheduledTransitions.put(transition.getKey(), previousTransition);
+        return;
+      }
+      removeFromWheel(previousTransition);
+    }
+    Long tickIndex = getTickIndex(transition);
+    List<ScheduledTransition> bucket = wheel.get(tickIndex);
+    if (bucket == null) {
+      bucket = new ArrayList<ScheduledTransition>();
+      wheel.put(tickIndex, bucket);
+    }
+    bucket.add(transition);
+  }
+
+  private void removeFromWheel(ScheduledTransition transition) {
+    Long tickIndex = getTickIndex(transition);
+    List<ScheduledTransition> bucket = wheel.get(tickIndex);
+    bucket.remove(transition);
+    if (bucket.isEmpty()) {
+      wheel.remove(tickIndex);
+    }
+  }
+
+  /**
+   * @return the index of the first tick ending after the date of the
+   *         transition
+   */
+  private Long getTickIndex(ScheduledTransition transition) {
+    return (transition.dueTime + tick - 1) / tick;
+  }
+
+  private synchronized List<ScheduledTransition> pollDueTransitions(long now) {
+    List<ScheduledTransition> dueTransitions = new ArrayList<ScheduledTransition>();
+    Iterator<List<ScheduledTransition>> buckets = wheel.headMap(now / tick + 1).values().iterator();
+    while (buckets.hasNext()) {
+      dueTransitions.addAll(buckets.next());
+      buckets.remove();
+    }
+    for (ScheduledTransition transition : dueTransitions) {
+      scheduledTransitions.remove(transition.getKey());
+    }
+    return dueTransitions;
+  }
+
+  /**
+   * Loads transitions due before the end of the horizon, including overdue
+   * ones. Contents already changed don't match the state condition anymore and
+   * pending transitions are moved to their current date.
+   */
+  private void loadTransitions() {
+    String lifecycleCondition = VersionHistoryPurgeService.getLifecycleCondition(publicationManager);
+    if (lifecycleCondition == null) {
+      return;
+    }
+    long until = System.currentTimeMillis() + horizon;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      loadTransitions(session, lifecycleCondition, START_DATE_PROP, PublicationDefaultStates.STAGED, PublicationDefaultStates.PUBLISHED, until);
+      loadTransitions(session, lifecycleCondition, END_DATE_PROP, PublicationDefaultStates.PUBLISHED, PublicationDefaultStates.UNPUBLISHED, until);
+    } catch (Exception e) {
+      LOG.warn("Can't load scheduled publications", e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Loads the transitions page by page, ordered by UUID so that contents
+   * changed by the transitions applied meanwhile don't shift the pages.
+   */
+  private void loadTransitions(Session session, String lifecycleCondition, String dateProperty, String currentState, String targetState, long until)
+      throws Exception {
+    String statement = "SELECT * FROM " + AuthoringPublicationConstant.PUBLICATION_LIFECYCLE_TYPE + " WHERE " + AuthoringPublicationConstant.CURRENT_STATE
+        + " = '" + currentState + "' AND " + dateProperty + " <= TIMESTAMP '" + ISO8601.format(toCalendar(until)) + "' AND " + lifecycleCondition
+        + " AND " + JCR_UUID_PROP + " IS NOT NULL";
+    String lastUUID = null;
+    int count;
+    do {
+      String pageStatement = statement;
+      if (lastUUID != null) {
+        pageStatement += " AND " + JCR_UUID_PROP + " > '" + lastUUID.replace("'", "''") + "'";
+      }
+      pageStatement += " ORDER BY " + JCR_UUID_PROP;
+      QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(pageStatement, Query.SQL);
+      query.setLimit(pageSize);
+      NodeIterator nodes = query.execute().getNodes();
+      count = 0;
+      while (nodes.hasNext()) {
+        Node node = nodes.nextNode();
+        count++;
+        lastUUID = node.getUUID();
+        addTransition(new ScheduledTransition(NodeReference.of(node), node.getProperty(dateProperty).getDate().getTimeInMillis(), targetState));
+      }
+    } while (count == pageSize);
+  }
+
+  private void fireDueTransitions() {
+    long now = System.currentTimeMillis();
+    List<ScheduledTransition> dueTransitions = pollDueTransitions(now);
+    if (dueTransitions.isEmpty()) {
+      return;
+    }
+    Map<String, List<ScheduledTransition>> transitionsByState = new HashMap<String, List<ScheduledTransition>>();
+    for (ScheduledTransition transition : dueTransitions) {
+      long lag = now - transition.dueTime;
+      totalLag.addAndGet(lag);
+      long currentMax = maxLag.get();
+      while (lag > currentMax && !maxLag.compareAndSet(currentMax, lag)) {
+        currentMax = maxLag.get();
+      }
+      List<ScheduledTransition> transitions = transitionsByState.get(transition.targetState);
+      if (transitions == null) {
+        transitions = new ArrayList<ScheduledTransition>();
+        transitionsByState.put(transition.targetState, transitions);
+      }
+      transitions.add(transition);
+    }
+    for (Map.Entry<String, List<ScheduledTransition>> entry : transitionsByState.entrySet()) {
+      applyTransitions(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void applyTransitions(String targetState, List<ScheduledTransition> transitions) {
+    String expectedState = PublicationDefaultStates.PUBLISHED.equals(targetState) ? PublicationDefaultStates.STAGED : PublicationDefaultStates.PUBLISHED;
+    String dateProperty = PublicationDefaultStates.PUBLISHED.equals(targetState) ? START_DATE_PROP : END_DATE_PROP;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      List<Node> nodes = new ArrayList<Node>();
+      for (ScheduledTransition transition : transitions) {
+        try {
+          Node node = transition.nodeReference.resolve(session);
+          // Skip contents which state or date changed since they were loaded
+          if (node.hasProperty(dateProperty) && node.getProperty(dateProperty).getDate().getTimeInMillis() <= System.currentTimeMillis()
+              && node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE)
+              && expectedState.equals(node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString())) {
+            nodes.add(node);
+          }
+        } catch (ItemNotFoundException e) {
+          LOG.debug("Scheduled content '" + transition.nodeReference + "' doesn't exist anymore");
+        } catch (PathNotFoundException e) {
+          LOG.debug("Scheduled content '" + transition.nodeReference + "' doesn't exist anymore");
+        }
+      }
+      if (nodes.isEmpty()) {
+        return;
+      }
+      BatchStateChangeResult result = getPublicationPlugin().changeStates(nodes, targetState, new HashMap<String, String>());
+      batches.incrementAndGet();
+      transitionsApplied.addAndGet(result.getSucceeded().size());
+      transitionsFailed.addAndGet(result.getFailures().size());
+      if (!result.isSuccessful()) {
+        LOG.warn("Scheduled change to " + targetState + " failed for " + result.getFailures().keySet());
+      }
+    } catch (Exception e) {
+      transitionsFailed.addAndGet(transitions.size());
+      LOG.error("Can't apply scheduled change to " + targetState + " of " + transitions.size() + " contents", e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private AuthoringPublicationPlugin getPublicationPlugin() {
+    return (AuthoringPublicationPlugin) wcmPublicationService.getWebpagePublicationPlugins().get(AuthoringPublicationConstant.LIFECYCLE_NAME);
+  }
+
+  private void runInContainer(Runnable task) {
+    ExoContainer container = containerContext.getContainer();
+    ExoContainerContext.setCurrentContainer(container);
+    RequestLifeCycle.begin(container);
+    try {
+      task.run();
+    } catch (Exception e) {
+      LOG.error("Error in scheduled publication task", e);
+    } finally {
+      RequestLifeCycle.end();
+    }
+  }
+
+  private static Calendar toCalendar(long time) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    return calendar;
+  }
+
+  private static class ScheduledTransition {
+    private final NodeReference nodeReference;
+    private final long dueTime;
+    private final String targetState;
+
+    ScheduledTransition(NodeReference nodeReference, long dueTime, String targetState) {
+      this.nodeReference = nodeReference;
+      this.dueTime = dueTime;
+      this.targetState = targetState;
+    }
+
+    String getKey() {
+      return nodeReference.getKey() + "/" + targetState;
+    }
+  }
+}
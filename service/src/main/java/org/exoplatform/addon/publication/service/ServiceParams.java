@@ -0,0 +1,37 @@
+package org.exoplatform.addon.publication.service;
+
+import org.apache.commons.lang.StringUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+
+/**
+ * Reads optional value-params of the services of this extension.
+ */
+public final class ServiceParams {
+
+  private ServiceParams() {
+  }
+
+  public static String getString(InitParams params, String name, String defaultValue) {
+    if (params == null) {
+      return defaultValue;
+    }
+    ValueParam valueParam = params.getValueParam(name);
+    if (valueParam == null || StringUtils.isBlank(valueParam.getValue())) {
+      return defaultValue;
+    }
+    return valueParam.getValue().trim();
+  }
+
+  public static boolean getBoolean(InitParams params, String name, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(params, name, String.valueOf(defaultValue)));
+  }
+
+  public static int getInt(InitParams params, String name, int defaultValue) {
+    return Integer.parseInt(getString(params, name, String.valueOf(defaultValue)));
+  }
+
+  public static long getLong(InitParams params, String name, long defaultValue) {
+    return Long.parseLong(getString(params, name, String.valueOf(defaultValue)));
+  }
+}
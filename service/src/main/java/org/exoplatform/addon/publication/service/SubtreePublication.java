@@ -0,0 +1,184 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of a state change applied to all the contents of a subtree by
+ * {@link SubtreePublicationService}: progress, cancellation and failures.
+ */
+public class SubtreePublication {
+
+  private final String id;
+  private final String workspace;
+  private final String path;
+  private final String targetState;
+  private final int maxFailures;
+  private final long startTime = System.currentTimeMillis();
+
+  private final AtomicLong found = new AtomicLong();
+  private final AtomicLong succeeded = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final Map<String, String> failures = new LinkedHashMap<String, String>();
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private volatile boolean enumerated;
+  private volatile boolean cancelled;
+  private volatile long endTime;
+
+  SubtreePublication(String id, String workspace, String path, String targetState, int maxFailures) {
+    this.id = id;
+    this.workspace = workspace;
+    this.path = path;
+    this.targetState = targetState;
+    this.maxFailures = maxFailures;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getWorkspace() {
+    return workspace;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public String getTargetState() {
+    return targetState;
+  }
+
+  /**
+   * @return the number of contents found so far in the subtree
+   */
+  public long getFound() {
+    return found.get();
+  }
+
+  /**
+   * @return true once all the contents of the subtree have been found
+   */
+  public boolean isEnumerated() {
+    return enumerated;
+  }
+
+  public long getSucceeded() {
+    return succeeded.get();
+  }
+
+  /**
+   * @return the number of contents that were already in the target state
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getProcessed() {
+    return succeeded.get() + skipped.get() + failed.get();
+  }
+
+  /**
+   * @return the failure cause by content path, limited to the first failures
+   */
+  public Map<String, String> getFailures() {
+    synchronized (failures) {
+      return new LinkedHashMap<String, String>(failures);
+    }
+  }
+
+  /**
+   * Stops the operation: batches not started yet are dropped, running batches
+   * complete.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * Waits for the end of the operation.
+   *
+   * @param timeout
+   *          the maximum time to wait
+   * @param unit
+   *          the unit of the timeout
+   * @return true if the operation is done
+   * @throws InterruptedException
+   *           if the current thread is interrupted while waiting
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+
+  /**
+   * @return the time in milliseconds since the start of the operation, or its
+   *         duration once done
+   */
+  public long getDuration() {
+    return (isDone() ? endTime : System.currentTimeMillis()) - startTime;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder summary = new StringBuilder();
+    summary.append(id).append(": ").append(targetState).append(" '").append(workspace).append(":").append(path).append("' ");
+    summary.append(isDone() ? (cancelled ? "cancelled" : "done") : (cancelled ? "cancelling" : "running"));
+    summary.append(", ").append(getProcessed()).append("/").append(found.get()).append(enumerated ? "" : "+").append(" processed");
+    summary.append(", ").append(succeeded.get()).append(" succeeded, ").append(skipped.get()).append(" skipped, ").append(failed.get()).append(" failed");
+    summary.append(" in ").append(getDuration()).append(" ms");
+    for (Map.Entry<String, String> failure : getFailures().entrySet()) {
+      summary.append('\n').append(failure.getKey()).append(": ").append(failure.getValue());
+    }
+    if (failed.get() > maxFailures) {
+      summary.append('\n').append(failed.get() - maxFailures).append(" more failures");
+    }
+    return summary.toString();
+  }
+
+  void addFound(long count) {
+    found.addAndGet(count);
+  }
+
+  void setEnumerated() {
+    enumerated = true;
+  }
+
+  void addSucceeded(long count) {
+    succeeded.addAndGet(count);
+  }
+
+  void addSkipped(long count) {
+    skipped.addAndGet(count);
+  }
+
+  void addFailure(String path, Exception exception) {
+    failed.incrementAndGet();
+    synchronized (failures) {
+      if (failures.size() < maxFailures) {
+        failures.put(path, String.valueOf(exception));
+      }
+    }
+  }
+
+  void setDone() {
+    endTime = System.currentTimeMillis();
+    done.countDown();
+  }
+}
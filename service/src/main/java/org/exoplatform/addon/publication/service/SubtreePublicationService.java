@@ -0,0 +1,418 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.addon.publication.lifecycle.BatchStateChangeResult;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.access.PermissionType;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.exoplatform.services.wcm.publication.WCMPublicationService;
+import org.picocontainer.Startable;
+
+/**
+ * Changes the state of all the contents of a subtree. The contents are listed
+ * with a paged query and split in batches applied by a pool of workers, each
+ * batch with its own session and saves. Only references of the contents are
+ * kept in memory and the number of batches submitted and not yet applied is
+ * bounded, so that a large subtree isn't loaded at once.
+ */
+@Managed
+@ManagedDescription("Publication of whole subtrees")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "subtreePublication") })
+public class SubtreePublicationService implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(SubtreePublicationService.class.getName());
+
+  public static final String WORKERS_PARAM = "workers";
+  public static final String BATCH_SIZE_PARAM = "batch.size";
+  public static final String MAX_IN_FLIGHT_PARAM = "max.in.flight";
+  public static final String PAGE_SIZE_PARAM = "page.size";
+  public static final String MAX_FAILURES_PARAM = "max.failures";
+
+  /** Number of finished operations kept for their summary */
+  private static final int RETAINED_OPERATIONS = 20;
+  private static final String JCR_UUID_PROP = "jcr:uuid";
+
+  private final RepositoryService repositoryService;
+  private final WCMPublicationService wcmPublicationService;
+  private final PublicationManager publicationManager;
+  private final ExoContainerContext containerContext;
+
+  private final int workers;
+  private final int batchSize;
+  private final int maxInFlight;
+  private final int pageSize;
+  private final int maxFailures;
+
+  private volatile ExecutorService executor;
+  private final AtomicInteger operationSequence = new AtomicInteger();
+  private final Map<String, SubtreePublication> operations = new LinkedHashMap<String, SubtreePublication>();
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong contentsChanged = new AtomicLong();
+
+  public SubtreePublicationService(RepositoryService repositoryService, WCMPublicationService wcmPublicationService, PublicationManager publicationManager,
+      ExoContainerContext containerContext, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.wcmPublicationService = wcmPublicationService;
+    this.publicationManager = publicationManager;
+    this.containerContext = containerContext;
+    this.workers = Math.max(1, ServiceParams.getInt(params, WORKERS_PARAM, Runtime.getRuntime().availableProcessors()));
+    this.batchSize = Math.max(1, ServiceParams.getInt(params, BATCH_SIZE_PARAM, 50));
+    this.maxInFlight = Math.max(1, ServiceParams.getInt(params, MAX_IN_FLIGHT_PARAM, workers * 2));
+    this.pageSize = Math.max(1, ServiceParams.getInt(params, PAGE_SIZE_PARAM, 500));
+    this.maxFailures = Math.max(0, ServiceParams.getInt(params, MAX_FAILURES_PARAM, 100));
+  }
+
+  public void start() {
+    final AtomicInteger threadIndex = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "publication-subtree-worker-" + threadIndex.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void stop() {
+    synchronized (operations) {
+      for (SubtreePublication operation : operations.values()) {
+        operation.cancel();
+      }
+    }
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    executor = null;
+  }
+
+  /**
+   * Starts changing the state of the contents under a path, the operation
+   * runs in background with the identity of the current user: contents the
+   * user can't modify are reported as failures.
+   *
+   * @param workspace
+   *          the workspace
+   * @param path
+   *          the root of the subtree, which isn't changed itself
+   * @param targetState
+   *          the new state of the contents
+   * @return the handle of the operation
+   */
+  public SubtreePublication changeSubtreeState(String workspace, String path, String targetState) {
+    if (executor == null) {
+      throw new IllegalStateException("Subtree publication service isn't started");
+    }
+    final String lifecycleCondition = VersionHistoryPurgeService.getLifecycleCondition(publicationManager);
+    final SubtreePublication operation = new SubtreePublication(String.valueOf(operationSequence.incrementAndGet()), workspace, path, targetState,
+                                                                maxFailures);
+    addOperation(operation);
+    if (lifecycleCondition == null) {
+      LOG.warn("No lifecycle uses the authoring publication plugin, nothing to change under '" + workspace + ":" + path + "'");
+      operation.setEnumerated();
+      operation.setDone();
+      return operation;
+    }
+    final ConversationState conversationState = ConversationState.getCurrent();
+    Thread coordinator = new Thread("publication-subtree-" + operation.getId()) {
+      @Override
+      public void run() {
+        ExoContainer container = containerContext.getContainer();
+        ExoContainerContext.setCurrentContainer(container);
+        try {
+          enumerate(operation, lifecycleCondition, conversationState);
+        } catch (Exception e) {
+          LOG.error("Can't list contents of '" + operation.getWorkspace() + ":" + operation.getPath() + "', operation cancelled", e);
+          operation.cancel();
+        }
+      }
+    };
+    coordinator.setDaemon(true);
+    coordinator.start();
+    return operation;
+  }
+
+  /**
+   * @param id
+   *          the operation id
+   * @return the operation, null if unknown or no more retained
+   */
+  public SubtreePublication getOperation(String id) {
+    synchronized (operations) {
+      return operations.get(id);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Publishes the contents under a path, returns the id of the operation")
+  public String publishSubtree(@ManagedDescription("Workspace name") @ManagedName("workspace") String workspace,
+      @ManagedDescription("Path of the subtree") @ManagedName("path") String path) {
+    return changeSubtreeState(workspace, path, PublicationDefaultStates.PUBLISHED).getId();
+  }
+
+  @Managed
+  @ManagedDescription("Progress and failures of an operation")
+  public String getOperationSummary(@ManagedDescription("Operation id") @ManagedName("id") String id) {
+    SubtreePublication operation = getOperation(id);
+    return operation == null ? "Unknown operation " + id : operation.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Cancels an operation, batches being applied complete")
+  public String cancelOperation(@ManagedDescription("Operation id") @ManagedName("id") String id) {
+    SubtreePublication operation = getOperation(id);
+    if (operation == null) {
+      return "Unknown operation " + id;
+    }
+    operation.cancel();
+    return operation.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Summary of the running and last finished operations")
+  public String getOperations() {
+    StringBuilder summary = new StringBuilder();
+    synchronized (operations) {
+      for (SubtreePublication operation : operations.values()) {
+        summary.append(operation.toString()).append('\n');
+      }
+    }
+    return summary.toString();
+  }
+
+  @Managed
+  @ManagedDescription("Number of batches applied")
+  public long getBatches() {
+    return batches.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of contents which state has been changed")
+  public long getContentsChanged() {
+    return contentsChanged.get();
+  }
+
+  private void addOperation(SubtreePublication operation) {
+    synchronized (operations) {
+      // Forget the oldest finished operations
+      List<String> finishedIds = new ArrayList<String>();
+      for (SubtreePublication retainedOperation : operations.values()) {
+        if (retainedOperation.isDone()) {
+          finishedIds.add(retainedOperation.getId());
+        }
+      }
+      for (int i = 0; i < finishedIds.size() - RETAINED_OPERATIONS + 1; i++) {
+        operations.remove(finishedIds.get(i));
+      }
+      operations.put(operation.getId(), operation);
+    }
+  }
+
+  /**
+   * Lists all the contents of the subtree, then submits them in batches to the
+   * workers, waiting while too many batches are pending. Contents are listed
+   * before any change since the changes of the workers could move them
+   * between the pages of the query. The operation is done once all the
+   * submitted batches are applied.
+   */
+  private void enumerate(SubtreePublication operation, String lifecycleCondition, ConversationState conversationState) throws Exception {
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    try {
+      List<NodeReference> nodeReferences = listContents(operation, lifecycleCondition, conversationState);
+      operation.setEnumerated();
+      for (int i = 0; i < nodeReferences.size() && !operation.isCancelled(); i += batchSize) {
+        List<NodeReference> batch = new ArrayList<NodeReference>(nodeReferences.subList(i, Math.min(i + batchSize, nodeReferences.size())));
+        submit(operation, batch, inFlight, conversationState);
+      }
+    } finally {
+      // Wait for the submitted batches
+      inFlight.acquireUninterruptibly(maxInFlight);
+      operation.setDone();
+      LOG.info("Subtree operation " + operation);
+    }
+  }
+
+  /**
+   * Reads the contents of the subtree visible by the user page by page, with a
+   * new session per page. Pages are read in UUID order after the last listed
+   * content, so that contents added or removed by others meanwhile don't shift
+   * the next pages.
+   */
+  private List<NodeReference> listContents(SubtreePublication operation, String lifecycleCondition, ConversationState conversationState) throws Exception {
+    String statement = "SELECT * FROM " + AuthoringPublicationConstant.PUBLICATION_LIFECYCLE_TYPE + " WHERE jcr:path LIKE '"
+        + operation.getPath().replace("'", "''") + "/%' AND " + lifecycleCondition + " AND " + JCR_UUID_PROP + " IS NOT NULL";
+    List<NodeReference> nodeReferences = new ArrayList<NodeReference>();
+    String lastUUID = null;
+    int count;
+    do {
+      count = 0;
+      String pageStatement = statement;
+      if (lastUUID != null) {
+        pageStatement += " AND " + JCR_UUID_PROP + " > '" + lastUUID.replace("'", "''") + "'";
+      }
+      pageStatement += " ORDER BY " + JCR_UUID_PROP;
+      SessionProvider sessionProvider = createSessionProvider(conversationState);
+      RequestLifeCycle.begin(containerContext.getContainer());
+      try {
+        Session session = sessionProvider.getSession(operation.getWorkspace(), repositoryService.getCurrentRepository());
+        QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(pageStatement, Query.SQL);
+        query.setLimit(pageSize);
+        NodeIterator nodes = query.execute().getNodes();
+        while (nodes.hasNext() && !operation.isCancelled()) {
+          Node node = nodes.nextNode();
+          lastUUID = node.getUUID();
+          nodeReferences.add(NodeReference.of(node));
+          operation.addFound(1);
+          count++;
+        }
+      } finally {
+        sessionProvider.close();
+        RequestLifeCycle.end();
+      }
+    } while (count == pageSize && !operation.isCancelled());
+    return nodeReferences;
+  }
+
+  /**
+   * Sessions are opened with the identity of the user who started the
+   * operation, so that only the contents the user can modify are changed. Operations
+   * started without user, from JMX, use system sessions.
+   */
+  private SessionProvider createSessionProvider(ConversationState conversationState) {
+    return conversationState == null ? SessionProvider.createSystemProvider() : new SessionProvider(conversationState);
+  }
+
+  private void submit(final SubtreePublication operation, final List<NodeReference> batch, final Semaphore inFlight,
+      final ConversationState conversationState) throws InterruptedException {
+    inFlight.acquire();
+    ExecutorService currentExecutor = executor;
+    if (currentExecutor == null) {
+      // The service has been stopped
+      inFlight.release();
+      operation.cancel();
+      return;
+    }
+    try {
+      currentExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            if (!operation.isCancelled()) {
+              applyBatch(operation, batch, conversationState);
+            }
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.release();
+      operation.cancel();
+      addFailures(operation, batch, e);
+    }
+  }
+
+  /**
+   * Applies a batch of contents with a new session, as the user who started
+   * the operation.
+   */
+  private void applyBatch(SubtreePublication operation, List<NodeReference> batch, ConversationState conversationState) {
+    ExoContainer container = containerContext.getContainer();
+    ExoContainerContext.setCurrentContainer(container);
+    ConversationState previousConversationState = ConversationState.getCurrent();
+    ConversationState.setCurrent(conversationState);
+    RequestLifeCycle.begin(container);
+    SessionProvider sessionProvider = createSessionProvider(conversationState);
+    // Contents not counted yet as skipped, succeeded or failed
+    List<NodeReference> pendingReferences = new ArrayList<NodeReference>(batch);
+    try {
+      Session session = sessionProvider.getSession(operation.getWorkspace(), repositoryService.getCurrentRepository());
+      List<Node> nodes = new ArrayList<Node>();
+      for (NodeReference nodeReference : batch) {
+        try {
+          Node node = nodeReference.resolve(session);
+          session.checkPermission(node.getPath(), PermissionType.SET_PROPERTY);
+          if (node.hasProperty(AuthoringPublicationConstant.CURRENT_STATE)
+              && operation.getTargetState().equals(node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString())) {
+            operation.addSkipped(1);
+            pendingReferences.remove(nodeReference);
+          } else {
+            nodes.add(node);
+          }
+        } catch (Exception e) {
+          operation.addFailure(nodeReference.getPath(), e);
+          pendingReferences.remove(nodeReference);
+        }
+      }
+      if (nodes.isEmpty()) {
+        return;
+      }
+      BatchStateChangeResult result = getPublicationPlugin().changeStates(nodes, operation.getTargetState(), new HashMap<String, String>());
+      pendingReferences.clear();
+      batches.incrementAndGet();
+      contentsChanged.addAndGet(result.getSucceeded().size());
+      operation.addSucceeded(result.getSucceeded().size());
+      for (Map.Entry<String, Exception> failure : result.getFailures().entrySet()) {
+        operation.addFailure(failure.getKey(), failure.getValue());
+      }
+    } catch (Exception e) {
+      LOG.warn("Can't apply batch of " + batch.size() + " contents of operation " + operation.getId(), e);
+      addFailures(operation, pendingReferences, e);
+    } finally {
+      sessionProvider.close();
+      RequestLifeCycle.end();
+      ConversationState.setCurrent(previousConversationState);
+    }
+  }
+
+  private void addFailures(SubtreePublication operation, Collection<NodeReference> nodeReferences, Exception exception) {
+    for (NodeReference nodeReference : nodeReferences) {
+      operation.addFailure(nodeReference.getPath(), exception);
+    }
+  }
+
+  private AuthoringPublicationPlugin getPublicationPlugin() {
+    return (AuthoringPublicationPlugin) wcmPublicationService.getWebpagePublicationPlugins().get(AuthoringPublicationConstant.LIFECYCLE_NAME);
+  }
+}
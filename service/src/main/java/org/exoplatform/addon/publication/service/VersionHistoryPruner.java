@@ -0,0 +1,504 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.apache.commons.lang.StringUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.picocontainer.Startable;
+
+/**
+ * Deletes obsolete versions of published contents. When enabled, publishing
+ * only registers the version history to prune and a scheduled task removes its
+ * versions in batches of at most <code>batch.size</code> versions every
+ * <code>period</code> milliseconds.
+ * <p>
+ * A version history has at most one pending request, a new request replaces
+ * the previous one. The base and live versions of the versioned node are read
+ * again when pruning, so that they are kept even if they have been created
+ * after the request.
+ * <p>
+ * Versions that can't be deleted are skipped until the end of the history, then
+ * the history is pruned again in a later batch, up to <code>max.attempts</code>
+ * times.
+ * <p>
+ * Each request is saved under <code>path</code> in <code>workspace</code>
+ * before the version history can be detached from its node, and removed once
+ * the history is pruned. Requests left by a stop or a crash are loaded again
+ * at startup, so that detached histories, which no content references
+ * anymore, are still pruned.
+ */
+@Managed
+@ManagedDescription("Background pruner of obsolete versions")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "versionHistoryPruner") })
+public class VersionHistoryPruner implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(VersionHistoryPruner.class.getName());
+
+  public static final String ENABLED_PARAM = "enabled";
+  public static final String PERIOD_PARAM = "period";
+  public static final String BATCH_SIZE_PARAM = "batch.size";
+  public static final String MAX_ATTEMPTS_PARAM = "max.attempts";
+  public static final String WORKSPACE_PARAM = "workspace";
+  public static final String PATH_PARAM = "path";
+
+  private static final String ROOT_VERSION = "jcr:rootVersion";
+  private static final String VERSIONABLE_UUID_PROP = "jcr:versionableUuid";
+  private static final String NT_UNSTRUCTURED = "nt:unstructured";
+  private static final String REQUEST_WORKSPACE_PROP = "publication:pruneWorkspace";
+  private static final String REQUEST_KEPT_VERSIONS_PROP = "publication:pruneKeptVersions";
+  private static final String REQUEST_ID_PROP = "publication:pruneRequestId";
+  private static final int INIT_ATTEMPTS = 5;
+
+  private final RepositoryService repositoryService;
+
+  private final boolean enabled;
+  private final long period;
+  private final int batchSize;
+  private final int maxAttempts;
+  private final String requestsWorkspace;
+  private final String requestsPath;
+
+  /** Keys of the version histories to prune, in scheduling order */
+  private final ConcurrentLinkedQueue<String> pendingKeys = new ConcurrentLinkedQueue<String>();
+  private final ConcurrentMap<String, PruneRequest> pendingRequests = new ConcurrentHashMap<String, PruneRequest>();
+  private ScheduledExecutorService executor;
+
+  private final AtomicLong requestSequence = new AtomicLong();
+  private final AtomicLong versionsRemoved = new AtomicLong();
+  private final AtomicLong historiesPruned = new AtomicLong();
+  private final AtomicLong historiesFailed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong pruningTime = new AtomicLong();
+
+  public VersionHistoryPruner(RepositoryService repositoryService, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.enabled = ServiceParams.getBoolean(params, ENABLED_PARAM, true);
+    this.period = Math.max(100, ServiceParams.getLong(params, PERIOD_PARAM, 5000));
+    this.batchSize = Math.max(1, ServiceParams.getInt(params, BATCH_SIZE_PARAM, 100));
+    this.maxAttempts = Math.max(1, ServiceParams.getInt(params, MAX_ATTEMPTS_PARAM, 3));
+    this.requestsWorkspace = ServiceParams.getString(params, WORKSPACE_PARAM, "collaboration");
+    this.requestsPath = ServiceParams.getString(params, PATH_PARAM, "publicationPruning");
+  }
+
+  public void start() {
+    int loadedRequests;
+    try {
+      loadedRequests = loadRequests();
+    } catch (RepositoryException e) {
+      throw new IllegalStateException("Can't load the version histories to prune from '" + requestsWorkspace + ":/" + requestsPath + "'", e);
+    }
+    // When disabled, histories left to prune by a previous run are still pruned
+    if (!enabled && loadedRequests == 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "publication-version-pruner");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        pruneBatch();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    if (!pendingRequests.isEmpty()) {
+      LOG.info(pendingRequests.size() + " version histories are still to be pruned, they will be pruned after the next start");
+    }
+  }
+
+  /**
+   * @return true if versions are deleted in background
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Marks the versions of a version history as obsolete. They will be deleted
+   * by the background task, except the root version, the given versions and
+   * the current base and live versions of the versioned node. A pending request
+   * for the same version history is replaced. The request is saved before this
+   * method returns, so the version history can then be detached from its node.
+   * 
+   * @param workspace
+   *          the workspace of the versioned node
+   * @param versionHistoryUUID
+   *          the UUID of the version history
+   * @param keptVersionUUIDs
+   *          UUIDs of the versions to keep
+   * @throws RepositoryException
+   *           if the request can't be saved
+   */
+  public void schedule(String workspace, String versionHistoryUUID, Set<String> keptVersionUUIDs) throws RepositoryException {
+    PruneRequest request = new PruneRequest(workspace, versionHistoryUUID, keptVersionUUIDs, System.currentTimeMillis() + "-"
+        + requestSequence.incrementAndGet());
+    saveRequest(request);
+    String key = workspace + ":" + versionHistoryUUID;
+    if (pendingRequests.put(key, request) == null) {
+      pendingKeys.add(key);
+    }
+  }
+
+  /**
+   * @param workspace
+   *          the workspace of the versioned node
+   * @param versionHistoryUUID
+   *          the UUID of the version history
+   * @return true if versions of the version history are waiting to be deleted
+   */
+  public boolean isPending(String workspace, String versionHistoryUUID) {
+    return pendingRequests.containsKey(workspace + ":" + versionHistoryUUID);
+  }
+
+  /**
+   * Deletes the versions of a version history except the root version and the
+   * given versions.
+   * 
+   * @param versionHistory
+   *          the version history
+   * @param keptVersionUUIDs
+   *          UUIDs of the versions to keep
+   * @param maxVersions
+   *          maximum number of versions to delete
+   * @return the number of deleted versions, or -1 if no version remains to be
+   *         deleted
+   * @throws RepositoryException
+   *           if versions can't be read
+   */
+  public int removeVersions(VersionHistory versionHistory, Set<String> keptVersionUUIDs, int maxVersions) throws RepositoryException {
+    Set<String> failedVersionUUIDs = new HashSet<String>();
+    int attempted = removeVersions(versionHistory, keptVersionUUIDs, maxVersions, failedVersionUUIDs);
+    int removed = attempted - failedVersionUUIDs.size();
+    return attempted == maxVersions || removed > 0 ? removed : -1;
+  }
+
+  /**
+   * @param failedVersionUUIDs
+   *          receives the UUIDs of the versions that couldn't be deleted
+   * @return the number of versions deleted or that couldn't be deleted, less
+   *         than <code>maxVersions</code> if no other version remains
+   */
+  private int removeVersions(VersionHistory versionHistory,
+                             Set<String> keptVersionUUIDs,
+                             int maxVersions,
+                             Set<String> failedVersionUUIDs) throws RepositoryException {
+    List<Version> toDeleteVersions = new ArrayList<Version>();
+    VersionIterator versionIterator = versionHistory.getAllVersions();
+    while (versionIterator.hasNext() && toDeleteVersions.size() < maxVersions) {
+      Version version = versionIterator.nextVersion();
+      if (version == null || ROOT_VERSION.equals(version.getName()) || keptVersionUUIDs.contains(version.getUUID())
+          || failedVersionUUIDs.contains(version.getUUID())) {
+        continue;
+      }
+      toDeleteVersions.add(version);
+    }
+    // Delete newest versions first, as the inline deletion did
+    Collections.reverse(toDeleteVersions);
+
+    int removed = 0;
+    for (Version version : toDeleteVersions) {
+      String versionUUID = version.getUUID();
+      String versionName = version.getName();
+      try {
+        versionHistory.removeVersion(versionName);
+        removed++;
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        failedVersionUUIDs.add(versionUUID);
+        LOG.warn("Can't delete version '" + versionName + "' of version history '" + versionHistory.getPath() + "'", e);
+      }
+    }
+    versionsRemoved.addAndGet(removed);
+    return toDeleteVersions.size();
+  }
+
+  private void pruneBatch() {
+    long startTime = System.currentTimeMillis();
+    int budget = batchSize;
+    // Histories to prune again, in the next batch
+    List<String> retriedKeys = new ArrayList<String>();
+    while (budget > 0 && !pendingKeys.isEmpty()) {
+      String key = pendingKeys.peek();
+      PruneRequest request = pendingRequests.get(key);
+      if (request == null) {
+        pendingKeys.poll();
+        continue;
+      }
+      int attempted = 0;
+      boolean failed = false;
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try {
+        Session session = sessionProvider.getSession(request.workspace, repositoryService.getCurrentRepository());
+        VersionHistory versionHistory = (VersionHistory) session.getNodeByUUID(request.versionHistoryUUID);
+        Set<String> keptVersionUUIDs = new HashSet<String>(request.keptVersionUUIDs);
+        keptVersionUUIDs.addAll(getUsedVersionUUIDs(session, versionHistory));
+        attempted = removeVersions(versionHistory, keptVersionUUIDs, budget, request.failedVersionUUIDs);
+      } catch (ItemNotFoundException e) {
+        LOG.debug("Version history '" + request.versionHistoryUUID + "' doesn't exist anymore");
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        failed = true;
+        LOG.warn("Can't prune version history '" + request.versionHistoryUUID + "' of workspace '" + request.workspace + "'", e);
+      } finally {
+        sessionProvider.close();
+      }
+      if (!failed && attempted == budget) {
+        // Whole budget used, the history may have more versions
+        budget = 0;
+        continue;
+      }
+      budget -= Math.max(attempted, 1);
+      pendingKeys.poll();
+      if (!pendingRequests.remove(key, request)) {
+        // Replaced while pruning, prune it again with the new kept versions
+        pendingKeys.add(key);
+      } else if (!failed && request.failedVersionUUIDs.isEmpty()) {
+        historiesPruned.incrementAndGet();
+        removeRequest(request);
+      } else if (++request.attempts < maxAttempts) {
+        request.failedVersionUUIDs.clear();
+        if (pendingRequests.putIfAbsent(key, request) == null) {
+          retriedKeys.add(key);
+        }
+      } else {
+        historiesFailed.incrementAndGet();
+        // The saved request is kept, the history will be pruned again after the next start
+        LOG.warn("Giving up pruning version history '" + request.versionHistoryUUID + "' of workspace '" + request.workspace + "' after "
+            + maxAttempts + " attempts");
+      }
+    }
+    pendingKeys.addAll(retriedKeys);
+    pruningTime.addAndGet(System.currentTimeMillis() - startTime);
+  }
+
+  /**
+   * Loads the requests saved and not pruned by a previous run, creating their
+   * parent node if needed.
+   *
+   * @return the number of loaded requests
+   */
+  private int loadRequests() throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(requestsWorkspace, repositoryService.getCurrentRepository());
+      int loadedRequests = 0;
+      NodeIterator requestNodes = getRequestsNode(session).getNodes();
+      while (requestNodes.hasNext()) {
+        Node requestNode = requestNodes.nextNode();
+        Set<String> keptVersionUUIDs = new HashSet<String>();
+        if (requestNode.hasProperty(REQUEST_KEPT_VERSIONS_PROP)) {
+          for (Value value : requestNode.getProperty(REQUEST_KEPT_VERSIONS_PROP).getValues()) {
+            keptVersionUUIDs.add(value.getString());
+          }
+        }
+        PruneRequest request = new PruneRequest(requestNode.getProperty(REQUEST_WORKSPACE_PROP).getString(), requestNode.getName(), keptVersionUUIDs,
+                                                requestNode.getProperty(REQUEST_ID_PROP).getString());
+        String key = request.workspace + ":" + request.versionHistoryUUID;
+        if (pendingRequests.putIfAbsent(key, request) == null) {
+          pendingKeys.add(key);
+          loadedRequests++;
+        }
+      }
+      if (loadedRequests > 0) {
+        LOG.info(loadedRequests + " version histories left by a previous run will be pruned");
+      }
+      return loadedRequests;
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private void saveRequest(PruneRequest request) throws RepositoryException {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(requestsWorkspace, repositoryService.getCurrentRepository());
+      Node requestsNode = getRequestsNode(session);
+      // Requests of a version history are made under the lock of its node
+      Node requestNode = requestsNode.hasNode(request.versionHistoryUUID) ? requestsNode.getNode(request.versionHistoryUUID)
+                                                                          : requestsNode.addNode(request.versionHistoryUUID, NT_UNSTRUCTURED);
+      requestNode.setProperty(REQUEST_WORKSPACE_PROP, request.workspace);
+      requestNode.setProperty(REQUEST_KEPT_VERSIONS_PROP, request.keptVersionUUIDs.toArray(new String[request.keptVersionUUIDs.size()]));
+      requestNode.setProperty(REQUEST_ID_PROP, request.id);
+      session.save();
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Removes a saved request, unless it has been replaced by a newer one.
+   */
+  private void removeRequest(PruneRequest request) {
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(requestsWorkspace, repositoryService.getCurrentRepository());
+      Node requestsNode = getRequestsNode(session);
+      if (!requestsNode.hasNode(request.versionHistoryUUID)) {
+        return;
+      }
+      Node requestNode = requestsNode.getNode(request.versionHistoryUUID);
+      if (requestNode.hasProperty(REQUEST_ID_PROP) && request.id.equals(requestNode.getProperty(REQUEST_ID_PROP).getString())) {
+        requestNode.remove();
+        session.save();
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Can't remove the pruning request of version history '" + request.versionHistoryUUID + "', it will be pruned again after the next start", e);
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  /**
+   * Gets the parent node of the saved requests. Other cluster members may
+   * create it at the same time: the save then fails and the node is read again.
+   */
+  private Node getRequestsNode(Session session) throws RepositoryException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        Node rootNode = session.getRootNode();
+        if (!rootNode.hasNode(requestsPath)) {
+          rootNode.addNode(requestsPath, NT_UNSTRUCTURED);
+          session.save();
+        }
+        // Members use the first node if several have been created at once
+        return rootNode.getNode(requestsPath);
+      } catch (ItemExistsException e) {
+        if (attempt >= INIT_ATTEMPTS) {
+          throw e;
+        }
+        session.refresh(false);
+      } catch (InvalidItemStateException e) {
+        if (attempt >= INIT_ATTEMPTS) {
+          throw e;
+        }
+        session.refresh(false);
+      }
+    }
+  }
+
+  /**
+   * @return the UUIDs of the base and live versions of the node using the
+   *         version history, empty if it isn't used anymore
+   */
+  private Set<String> getUsedVersionUUIDs(Session session, VersionHistory versionHistory) throws RepositoryException {
+    Set<String> usedVersionUUIDs = new HashSet<String>();
+    if (!versionHistory.hasProperty(VERSIONABLE_UUID_PROP)) {
+      return usedVersionUUIDs;
+    }
+    Node node;
+    try {
+      node = session.getNodeByUUID(versionHistory.getProperty(VERSIONABLE_UUID_PROP).getString());
+    } catch (ItemNotFoundException e) {
+      return usedVersionUUIDs;
+    }
+    // Nodes detached from their history get a new one
+    if (!node.isNodeType(AuthoringPublicationConstant.MIX_VERSIONABLE) || !versionHistory.getUUID().equals(node.getVersionHistory().getUUID())) {
+      return usedVersionUUIDs;
+    }
+    usedVersionUUIDs.add(node.getBaseVersion().getUUID());
+    if (node.hasProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP)) {
+      String liveRevision = node.getProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP).getString();
+      if (StringUtils.isNotEmpty(liveRevision)) {
+        usedVersionUUIDs.add(liveRevision);
+      }
+    }
+    return usedVersionUUIDs;
+  }
+
+  @Managed
+  @ManagedDescription("Number of version histories waiting to be pruned")
+  public int getPendingHistories() {
+    return pendingRequests.size();
+  }
+
+  @Managed
+  @ManagedDescription("Number of version histories pruned")
+  public long getHistoriesPruned() {
+    return historiesPruned.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of version histories left with versions that couldn't be deleted")
+  public long getHistoriesFailed() {
+    return historiesFailed.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of versions deleted")
+  public long getVersionsRemoved() {
+    return versionsRemoved.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of versions or version histories that couldn't be deleted")
+  public long getFailures() {
+    return failures.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of versions deleted per second of pruning")
+  public long getThroughput() {
+    long time = pruningTime.get();
+    return time == 0 ? 0 : versionsRemoved.get() * 1000 / time;
+  }
+
+  private static class PruneRequest {
+    private final String workspace;
+    private final String versionHistoryUUID;
+    private final Set<String> keptVersionUUIDs;
+    /** Identifies the saved request, which is replaced by a newer request */
+    private final String id;
+    /** Versions that couldn't be deleted during the current attempt */
+    private final Set<String> failedVersionUUIDs = new HashSet<String>();
+    private int attempts;
+
+    PruneRequest(String workspace, String versionHistoryUUID, Set<String> keptVersionUUIDs, String id) {
+      this.workspace = workspace;
+      this.versionHistoryUUID = versionHistoryUUID;
+      this.keptVersionUUIDs = keptVersionUUIDs;
+      this.id = id;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+package org.exoplatform.addon.publication.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.apache.commons.lang.StringUtils;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.Lifecycle;
+import org.picocontainer.Startable;
+
+/**
+ * Administration service that deletes the legacy versions of all the contents
+ * using an authoring lifecycle, keeping only the live and the draft versions.
+ * Each child of the purged path is handled as a separate subtree by a worker
+ * with its own sessions. Contents are read page by page in UUID order, and the
+ * UUID of the last content purged in each subtree is saved in a checkpoint
+ * file so that an interrupted purge resumes where it stopped. Each content is
+ * purged under the same lock as its state changes.
+ */
+@Managed
+@ManagedDescription("Purge of legacy versions of contents using an authoring lifecycle")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "versionHistoryPurge") })
+public class VersionHistoryPurgeService implements Startable {
+
+  private static final Log LOG = ExoLogger.getLogger(VersionHistoryPurgeService.class.getName());
+
+  public static final String PAGE_SIZE_PARAM = "page.size";
+  public static final String THREADS_PARAM = "threads";
+  public static final String CHECKPOINT_FILE_PARAM = "checkpoint.file";
+
+  private static final String PUBLICATION_LIFECYCLE_PROP = "publication:lifecycle";
+  private static final String CHECKPOINT_DONE = "done";
+  private static final String JCR_UUID_PROP = "jcr:uuid";
+
+  private final RepositoryService repositoryService;
+  private final PublicationManager publicationManager;
+  private final VersionHistoryPruner versionHistoryPruner;
+  private final NodeLockManager nodeLockManager;
+
+  private final int pageSize;
+  private final int threads;
+  private final File checkpointFile;
+  private final Properties checkpoints = new Properties();
+
+  private ExecutorService executor;
+  private volatile boolean stopRequested;
+  private final AtomicInteger runningSubtrees = new AtomicInteger();
+  private final AtomicLong nodesProcessed = new AtomicLong();
+  private final AtomicLong versionsRemoved = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public VersionHistoryPurgeService(RepositoryService repositoryService, PublicationManager publicationManager, VersionHistoryPruner versionHistoryPruner,
+      NodeLockManager nodeLockManager, InitParams params) {
+    this.repositoryService = repositoryService;
+    this.publicationManager = publicationManager;
+    this.versionHistoryPruner = versionHistoryPruner;
+    this.nodeLockManager = nodeLockManager;
+    this.pageSize = Math.max(1, ServiceParams.getInt(params, PAGE_SIZE_PARAM, 100));
+    this.threads = Math.max(1, ServiceParams.getInt(params, THREADS_PARAM, 2));
+    this.checkpointFile = new File(ServiceParams.getString(params, CHECKPOINT_FILE_PARAM,
+        System.getProperty("exo.data.dir", System.getProperty("java.io.tmpdir")) + File.separator + "publication-noversion-purge.properties"));
+  }
+
+  public void start() {
+    loadCheckpoints();
+  }
+
+  public void stop() {
+    stopRequested = true;
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Starts the purge of the contents under a path. Subtrees already purged by a
+   * previous run are skipped, interrupted ones are resumed.
+   * 
+   * @param workspace
+   *          the workspace
+   * @param rootPath
+   *          the path of the parent of the subtrees to purge
+   * @return a status message
+   * @throws Exception
+   *           if the subtrees can't be listed
+   */
+  @Managed
+  @ManagedDescription("Starts the purge of legacy versions under a path")
+  public synchronized String purge(@ManagedDescription("Workspace name") @ManagedName("workspace") String workspace,
+      @ManagedDescription("Path of the folder to purge") @ManagedName("path") String rootPath) throws Exception {
+    if (isRunning()) {
+      return "A purge is already running";
+    }
+    List<String> subtrees = new ArrayList<String>();
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      NodeIterator children = ((Node) session.getItem(rootPath)).getNodes();
+      while (children.hasNext()) {
+        subtrees.add(children.nextNode().getPath());
+      }
+    } finally {
+      sessionProvider.close();
+    }
+
+    String lifecycleCondition = getLifecycleCondition(publicationManager);
+    if (lifecycleCondition == null) {
+      return "No lifecycle uses the authoring publication plugin";
+    }
+
+    stopRequested = false;
+    executor = Executors.newFixedThreadPool(threads);
+    int submitted = 0;
+    for (String subtree : subtrees) {
+      String checkpointKey = workspace + ":" + subtree;
+      if (CHECKPOINT_DONE.equals(checkpoints.getProperty(checkpointKey))) {
+        continue;
+      }
+      runningSubtrees.incrementAndGet();
+      executor.execute(new SubtreePurge(workspace, subtree, checkpointKey, lifecycleCondition));
+      submitted++;
+    }
+    executor.shutdown();
+    return "Purge of " + submitted + " subtrees of '" + rootPath + "' started, " + (subtrees.size() - submitted) + " already purged";
+  }
+
+  @Managed
+  @ManagedDescription("Stops the running purge, it can be resumed later")
+  public void stopPurge() throws InterruptedException {
+    stopRequested = true;
+    if (executor != null) {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @Managed
+  @ManagedDescription("Forgets the progress of previous purges")
+  public synchronized void resetCheckpoints() {
+    checkpoints.clear();
+    saveCheckpoints();
+  }
+
+  @Managed
+  @ManagedDescription("Whether a purge is running")
+  public boolean isRunning() {
+    return runningSubtrees.get() > 0;
+  }
+
+  @Managed
+  @ManagedDescription("Number of subtrees being purged or waiting to be purged")
+  public int getRunningSubtrees() {
+    return runningSubtrees.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of contents processed")
+  public long getNodesProcessed() {
+    return nodesProcessed.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of versions deleted")
+  public long getVersionsRemoved() {
+    return versionsRemoved.get();
+  }
+
+  @Managed
+  @ManagedDescription("Number of contents which versions couldn't be purged")
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @param publicationManager the publication manager
+   * @return the query condition matching contents using a lifecycle of the
+   *         authoring publication plugin, null if there is no such lifecycle
+   */
+  static String getLifecycleCondition(PublicationManager publicationManager) {
+    List<String> conditions = new ArrayList<String>();
+    for (Lifecycle lifecycle : publicationManager.getLifecycles()) {
+      if (AuthoringPublicationConstant.LIFECYCLE_NAME.equals(lifecycle.getPublicationPlugin())) {
+        conditions.add(PUBLICATION_LIFECYCLE_PROP + " = '" + lifecycle.getName().replace("'", "''") + "'");
+      }
+    }
+    return conditions.isEmpty() ? null : "(" + StringUtils.join(conditions, " OR ") + ")";
+  }
+
+  /**
+   * @param path
+   *          the root of a subtree
+   * @return the query condition matching the root and its descendants
+   */
+  static String getSubtreeCondition(String path) {
+    String escapedPath = path.replace("'", "''");
+    return "(jcr:path = '" + escapedPath + "' OR jcr:path LIKE '" + escapedPath + "/%')";
+  }
+
+  /**
+   * Deletes all versions of the node except the root, base and live versions.
+   * The node is locked so that a concurrent publication can't create a new
+   * base or live version while they are deleted.
+   */
+  private void purgeNode(Node node) throws Exception {
+    NodeLockManager.Locks locks = nodeLockManager.lock(Collections.singleton(node));
+    try {
+      // Read the versions to keep as left by the last state change
+      node.refresh(false);
+      if (!node.isNodeType(AuthoringPublicationConstant.MIX_VERSIONABLE)) {
+        return;
+      }
+      Set<String> keptVersions = new HashSet<String>();
+      keptVersions.add(node.getBaseVersion().getUUID());
+      if (node.hasProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP)) {
+        String liveRevision = node.getProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP).getString();
+        if (StringUtils.isNotEmpty(liveRevision)) {
+          keptVersions.add(liveRevision);
+        }
+      }
+      int removed = versionHistoryPruner.removeVersions(node.getVersionHistory(), keptVersions, Integer.MAX_VALUE);
+      if (removed > 0) {
+        versionsRemoved.addAndGet(removed);
+      }
+    } finally {
+      locks.unlock();
+    }
+  }
+
+  private synchronized void loadCheckpoints() {
+    if (!checkpointFile.exists()) {
+      return;
+    }
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(checkpointFile);
+      checkpoints.load(inputStream);
+    } catch (IOException e) {
+      LOG.warn("Can't read purge checkpoints from '" + checkpointFile + "'", e);
+    } finally {
+      closeQuietly(inputStream);
+    }
+  }
+
+  private synchronized void saveCheckpoint(String key, String value) {
+    checkpoints.setProperty(key, value);
+    saveCheckpoints();
+  }
+
+  private synchronized void saveCheckpoints() {
+    OutputStream outputStream = null;
+    try {
+      if (checkpointFile.getParentFile() != null) {
+        checkpointFile.getParentFile().mkdirs();
+      }
+      outputStream = new FileOutputStream(checkpointFile);
+      checkpoints.store(outputStream, "Publication versions purge checkpoints");
+    } catch (IOException e) {
+      LOG.warn("Can't write purge checkpoints to '" + checkpointFile + "'", e);
+    } finally {
+      closeQuietly(outputStream);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        LOG.debug("Can't close stream", e);
+      }
+    }
+  }
+
+  private class SubtreePurge implements Runnable {
+    private final String workspace;
+    private final String subtree;
+    private final String checkpointKey;
+    private final String lifecycleCondition;
+
+    SubtreePurge(String workspace, String subtree, String checkpointKey, String lifecycleCondition) {
+      this.workspace = workspace;
+      this.subtree = subtree;
+      this.checkpointKey = checkpointKey;
+      this.lifecycleCondition = lifecycleCondition;
+    }
+
+    public void run() {
+      try {
+        String lastUUID = checkpoints.getProperty(checkpointKey);
+        String statement = "SELECT * FROM " + AuthoringPublicationConstant.PUBLICATION_LIFECYCLE_TYPE + " WHERE " + getSubtreeCondition(subtree) + " AND "
+            + lifecycleCondition + " AND " + JCR_UUID_PROP + " IS NOT NULL";
+        boolean done = false;
+        while (!done && !stopRequested) {
+          String pageLastUUID = purgePage(statement, lastUUID);
+          if (stopRequested) {
+            // The current page, possibly partially purged, will be processed again on resume
+            break;
+          }
+          done = pageLastUUID == null;
+          if (!done) {
+            lastUUID = pageLastUUID;
+          }
+          saveCheckpoint(checkpointKey, done ? CHECKPOINT_DONE : lastUUID);
+        }
+        LOG.info((done ? "Purge done" : "Purge interrupted") + " for '" + workspace + ":" + subtree + "'");
+      } catch (Exception e) {
+        LOG.error("Purge of '" + workspace + ":" + subtree + "' failed, it will be resumed by the next purge", e);
+      } finally {
+        runningSubtrees.decrementAndGet();
+      }
+    }
+
+    /**
+     * Purges one page of contents using a new session, so that nothing loaded
+     * by previous pages is retained. Pages are read in UUID order after the
+     * last processed content, so that contents added or removed since don't
+     * shift the next pages.
+     * 
+     * @param lastUUID
+     *          the UUID of the last processed content, null for the first page
+     * @return the UUID of the last content of the page if it is full, null if
+     *         there is no more content to purge
+     */
+    private String purgePage(String statement, String lastUUID) throws Exception {
+      if (lastUUID != null) {
+        statement += " AND " + JCR_UUID_PROP + " > '" + lastUUID.replace("'", "''") + "'";
+      }
+      statement += " ORDER BY " + JCR_UUID_PROP;
+      SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+      try {
+        Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+        QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(statement, Query.SQL);
+        query.setLimit(pageSize);
+        NodeIterator nodes = query.execute().getNodes();
+        int count = 0;
+        String pageLastUUID = null;
+        while (nodes.hasNext() && !stopRequested) {
+          Node node = nodes.nextNode();
+          count++;
+          pageLastUUID = node.getUUID();
+          try {
+            purgeNode(node);
+          } catch (Exception e) {
+            failures.incrementAndGet();
+            LOG.warn("Can't purge versions of '" + node.getPath() + "'", e);
+          }
+          nodesProcessed.incrementAndGet();
+        }
+        return count == pageSize ? pageLastUUID : null;
+      } finally {
+        sessionProvider.close();
+      }
+    }
+  }
+}
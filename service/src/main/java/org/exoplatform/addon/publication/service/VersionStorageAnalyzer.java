@@ -0,0 +1,489 @@
+package org.exoplatform.addon.publication.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.version.Version;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.management.annotations.Managed;
+import org.exoplatform.management.annotations.ManagedDescription;
+import org.exoplatform.management.annotations.ManagedName;
+import org.exoplatform.management.jmx.annotations.NameTemplate;
+import org.exoplatform.management.jmx.annotations.Property;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.core.ManageableRepository;
+import org.exoplatform.services.jcr.ext.common.SessionProvider;
+import org.exoplatform.services.jcr.impl.core.query.QueryImpl;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.services.wcm.extensions.publication.PublicationManager;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+
+/**
+ * Administration report of the version storage used by the contents of an
+ * authoring lifecycle. Contents are read page by page with a new session per
+ * page, only the top consumers and the totals per site are retained. Contents
+ * having more versions than expected are flagged: their obsolete versions
+ * couldn't be deleted, unless the background pruner hasn't deleted them yet.
+ * <p>
+ * Version histories no longer used by a node of any workspace, such as the
+ * ones detached when versions are deleted, are reported separately as orphans.
+ * The version storage is indexed in the system workspace, so they are queried
+ * there.
+ */
+@Managed
+@ManagedDescription("Version storage used by contents using an authoring lifecycle")
+@NameTemplate({ @Property(key = "service", value = "publication"), @Property(key = "view", value = "versionStorage") })
+public class VersionStorageAnalyzer {
+
+  private static final Log LOG = ExoLogger.getLogger(VersionStorageAnalyzer.class.getName());
+
+  public static final String PAGE_SIZE_PARAM = "page.size";
+  public static final String TOP_SIZE_PARAM = "top.size";
+  public static final String EXPECTED_VERSIONS_PARAM = "expected.versions";
+
+  public static final String SORT_BY_SIZE = "size";
+  public static final String SORT_BY_VERSIONS = "versions";
+
+  private static final String ROOT_VERSION = "jcr:rootVersion";
+  private static final String FROZEN_NODE = "jcr:frozenNode";
+  private static final String VERSION_HISTORY_TYPE = "nt:versionHistory";
+  private static final String VERSION_STORAGE_PATH = "/jcr:system/jcr:versionStorage";
+  private static final String VERSIONABLE_UUID_PROP = "jcr:versionableUuid";
+  private static final String JCR_UUID_PROP = "jcr:uuid";
+  private static final String SITES_PATH = "/sites/";
+  private static final String NO_SITE = "-";
+
+  private static final Comparator<ContentFootprint> BY_SIZE = new Comparator<ContentFootprint>() {
+    public int compare(ContentFootprint o1, ContentFootprint o2) {
+      return o1.size < o2.size ? -1 : (o1.size == o2.size ? o1.path.compareTo(o2.path) : 1);
+    }
+  };
+
+  private static final Comparator<ContentFootprint> BY_VERSIONS = new Comparator<ContentFootprint>() {
+    public int compare(ContentFootprint o1, ContentFootprint o2) {
+      return o1.versions < o2.versions ? -1 : (o1.versions == o2.versions ? BY_SIZE.compare(o1, o2) : 1);
+    }
+  };
+
+  private final RepositoryService repositoryService;
+  private final PublicationManager publicationManager;
+  private final VersionHistoryPruner versionHistoryPruner;
+
+  private final int pageSize;
+  private final int topSize;
+  private final int expectedVersions;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+  private volatile boolean stopRequested;
+  private volatile Report report = new Report(null, null);
+
+  public VersionStorageAnalyzer(RepositoryService repositoryService,
+                                PublicationManager publicationManager,
+                                VersionHistoryPruner versionHistoryPruner,
+                                InitParams params) {
+    this.repositoryService = repositoryService;
+    this.publicationManager = publicationManager;
+    this.versionHistoryPruner = versionHistoryPruner;
+    this.pageSize = Math.max(1, ServiceParams.getInt(params, PAGE_SIZE_PARAM, 100));
+    this.topSize = Math.max(1, ServiceParams.getInt(params, TOP_SIZE_PARAM, 20));
+    this.expectedVersions = Math.max(1, ServiceParams.getInt(params, EXPECTED_VERSIONS_PARAM, 2));
+  }
+
+  /**
+   * Starts the analysis of the contents under a path then of the orphan
+   * version histories in background, the previous report is replaced.
+   *
+   * @param workspace
+   *          the workspace
+   * @param rootPath
+   *          the path of the folder to analyze
+   * @return a status message
+   */
+  @Managed
+  @ManagedDescription("Starts the analysis of the version storage under a path")
+  public String analyze(@ManagedDescription("Workspace name") @ManagedName("workspace") final String workspace,
+      @ManagedDescription("Path of the folder to analyze") @ManagedName("path") final String rootPath) {
+    final String lifecycleCondition = VersionHistoryPurgeService.getLifecycleCondition(publicationManager);
+    if (lifecycleCondition == null) {
+      return "No lifecycle uses the authoring publication plugin";
+    }
+    if (!running.compareAndSet(false, true)) {
+      return "An analysis is already running";
+    }
+    stopRequested = false;
+    report = new Report(workspace, rootPath);
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          String path = rootPath.length() > 1 && rootPath.endsWith("/") ? rootPath.substring(0, rootPath.length() - 1) : rootPath;
+          String statement = "SELECT * FROM " + AuthoringPublicationConstant.PUBLICATION_LIFECYCLE_TYPE + " WHERE "
+              + VersionHistoryPurgeService.getSubtreeCondition(path) + " AND " + lifecycleCondition + " AND " + JCR_UUID_PROP + " IS NOT NULL";
+          String lastUUID = null;
+          do {
+            lastUUID = analyzePage(workspace, statement, lastUUID, false);
+          } while (lastUUID != null && !stopRequested);
+          if (!stopRequested) {
+            String systemWorkspace = repositoryService.getCurrentRepository().getConfiguration().getSystemWorkspaceName();
+            statement = "SELECT * FROM " + VERSION_HISTORY_TYPE + " WHERE jcr:path LIKE '" + VERSION_STORAGE_PATH + "/%'";
+            lastUUID = null;
+            do {
+              lastUUID = analyzePage(systemWorkspace, statement, lastUUID, true);
+            } while (lastUUID != null && !stopRequested);
+          }
+          LOG.info("Version storage analysis of '" + workspace + ":" + rootPath + "' " + (stopRequested ? "stopped" : "done") + ": "
+              + report.getSummary());
+        } catch (Exception e) {
+          LOG.error("Version storage analysis of '" + workspace + ":" + rootPath + "' failed", e);
+        } finally {
+          running.set(false);
+        }
+      }
+    }, "publication-version-storage-analyzer");
+    thread.setDaemon(true);
+    thread.start();
+    return "Analysis of '" + workspace + ":" + rootPath + "' started";
+  }
+
+  @Managed
+  @ManagedDescription("Stops the running analysis, the report keeps the contents analyzed so far")
+  public void stopAnalysis() {
+    stopRequested = true;
+  }
+
+  @Managed
+  @ManagedDescription("Whether an analysis is running")
+  public boolean isRunning() {
+    return running.get();
+  }
+
+  @Managed
+  @ManagedDescription("Totals of the last analysis")
+  public String getSummary() {
+    return report.getSummary();
+  }
+
+  /**
+   * @param sortBy
+   *          {@link #SORT_BY_SIZE} or {@link #SORT_BY_VERSIONS}
+   * @return the contents using the most version storage, as CSV
+   */
+  @Managed
+  @ManagedDescription("Contents using the most version storage, as CSV")
+  public String getTopContents(@ManagedDescription("Sort criteria: size or versions") @ManagedName("sortBy") String sortBy) {
+    return report.getTopContents(SORT_BY_VERSIONS.equalsIgnoreCase(sortBy) ? BY_VERSIONS : BY_SIZE);
+  }
+
+  /**
+   * @param sortBy
+   *          {@link #SORT_BY_SIZE} or {@link #SORT_BY_VERSIONS}
+   * @return the version storage used per site, as CSV
+   */
+  @Managed
+  @ManagedDescription("Version storage used per site, as CSV")
+  public String getSites(@ManagedDescription("Sort criteria: size or versions") @ManagedName("sortBy") String sortBy) {
+    return report.getSites(SORT_BY_VERSIONS.equalsIgnoreCase(sortBy) ? BY_VERSIONS : BY_SIZE);
+  }
+
+  @Managed
+  @ManagedDescription("Flagged contents having more versions than expected, as CSV")
+  public String getFlaggedContents() {
+    return report.getFlaggedContents();
+  }
+
+  @Managed
+  @ManagedDescription("Orphan version histories using the most version storage, as CSV")
+  public String getOrphanHistories() {
+    return report.getOrphanHistories();
+  }
+
+  /**
+   * Analyzes one page of contents or version histories using a new session, so
+   * that nothing loaded by previous pages is retained. Pages are ordered by
+   * UUID and start after the last UUID of the previous page.
+   *
+   * @return the UUID of the last node of the page, or null if no node remains
+   */
+  private String analyzePage(String workspace, String statement, String lastUUID, boolean histories) throws Exception {
+    if (lastUUID != null) {
+      statement += " AND " + JCR_UUID_PROP + " > '" + lastUUID.replace("'", "''") + "'";
+    }
+    statement += " ORDER BY " + JCR_UUID_PROP;
+    SessionProvider sessionProvider = SessionProvider.createSystemProvider();
+    try {
+      Session session = sessionProvider.getSession(workspace, repositoryService.getCurrentRepository());
+      QueryImpl query = (QueryImpl) session.getWorkspace().getQueryManager().createQuery(statement, Query.SQL);
+      query.setLimit(pageSize);
+      NodeIterator nodes = query.execute().getNodes();
+      int count = 0;
+      String pageLastUUID = null;
+      while (nodes.hasNext() && !stopRequested) {
+        Node node = nodes.nextNode();
+        count++;
+        pageLastUUID = node.getUUID();
+        try {
+          if (histories) {
+            analyzeHistory(sessionProvider, (VersionHistory) node);
+          } else {
+            analyzeNode(workspace, node);
+          }
+        } catch (Exception e) {
+          report.addFailure();
+          LOG.warn("Can't analyze versions of '" + node.getPath() + "'", e);
+        }
+      }
+      return count == pageSize ? pageLastUUID : null;
+    } finally {
+      sessionProvider.close();
+    }
+  }
+
+  private void analyzeNode(String workspace, Node node) throws Exception {
+    ContentFootprint footprint = new ContentFootprint(node.getPath());
+    boolean pending = false;
+    if (node.isNodeType(AuthoringPublicationConstant.MIX_VERSIONABLE)) {
+      VersionHistory versionHistory = node.getVersionHistory();
+      pending = versionHistoryPruner.isPending(workspace, versionHistory.getUUID());
+      addVersions(footprint, versionHistory);
+    }
+    report.add(footprint, pending);
+  }
+
+  /**
+   * Adds a version history to the orphans if no node of the repository uses it
+   * and its versions aren't waiting to be deleted.
+   */
+  private void analyzeHistory(SessionProvider sessionProvider, VersionHistory versionHistory) throws Exception {
+    ManageableRepository repository = repositoryService.getCurrentRepository();
+    for (String workspace : repository.getWorkspaceNames()) {
+      if (versionHistoryPruner.isPending(workspace, versionHistory.getUUID())) {
+        return;
+      }
+    }
+    if (isUsed(sessionProvider, repository, versionHistory)) {
+      return;
+    }
+    ContentFootprint footprint = new ContentFootprint(versionHistory.getPath());
+    addVersions(footprint, versionHistory);
+    report.addOrphan(footprint);
+  }
+
+  /**
+   * @return true if a node of a workspace of the repository uses the version
+   *         history
+   */
+  private boolean isUsed(SessionProvider sessionProvider, ManageableRepository repository, VersionHistory versionHistory) throws RepositoryException {
+    if (!versionHistory.hasProperty(VERSIONABLE_UUID_PROP)) {
+      return false;
+    }
+    String versionableUUID = versionHistory.getProperty(VERSIONABLE_UUID_PROP).getString();
+    for (String workspace : repository.getWorkspaceNames()) {
+      Node node;
+      try {
+        node = sessionProvider.getSession(workspace, repository).getNodeByUUID(versionableUUID);
+      } catch (ItemNotFoundException e) {
+        continue;
+      }
+      // Nodes detached from their history get a new one
+      if (node.isNodeType(AuthoringPublicationConstant.MIX_VERSIONABLE) && versionHistory.getUUID().equals(node.getVersionHistory().getUUID())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addVersions(ContentFootprint footprint, VersionHistory versionHistory) throws Exception {
+    VersionIterator versionIterator = versionHistory.getAllVersions();
+    while (versionIterator.hasNext()) {
+      Version version = versionIterator.nextVersion();
+      if (version == null || ROOT_VERSION.equals(version.getName())) {
+        continue;
+      }
+      footprint.versions++;
+      if (version.hasNode(FROZEN_NODE)) {
+        footprint.size += getSize(version.getNode(FROZEN_NODE));
+      }
+    }
+  }
+
+  /**
+   * @return the size of the values stored in the node and its descendants,
+   *         in bytes for binaries and in characters otherwise
+   */
+  private long getSize(Node node) throws Exception {
+    long size = 0;
+    PropertyIterator properties = node.getProperties();
+    while (properties.hasNext()) {
+      javax.jcr.Property property = properties.nextProperty();
+      if (property.getDefinition().isMultiple()) {
+        for (long length : property.getLengths()) {
+          size += Math.max(0, length);
+        }
+      } else {
+        size += Math.max(0, property.getLength());
+      }
+    }
+    NodeIterator children = node.getNodes();
+    while (children.hasNext()) {
+      size += getSize(children.nextNode());
+    }
+    return size;
+  }
+
+  static String getSite(String path) {
+    int index = path.indexOf(SITES_PATH);
+    if (index < 0) {
+      return NO_SITE;
+    }
+    int start = index + SITES_PATH.length();
+    int end = path.indexOf('/', start);
+    return end < 0 ? path.substring(start) : path.substring(start, end);
+  }
+
+  private static String toCSV(List<ContentFootprint> footprints, String nameHeader) {
+    StringBuilder csv = new StringBuilder(nameHeader).append(",versions,size,contents,flagged\n");
+    for (ContentFootprint footprint : footprints) {
+      csv.append(footprint.path).append(',').append(footprint.versions).append(',').append(footprint.size).append(',').append(footprint.contents)
+         .append(',').append(footprint.flagged).append('\n');
+    }
+    return csv.toString();
+  }
+
+  private static List<ContentFootprint> sortDescending(Iterable<ContentFootprint> footprints, Comparator<ContentFootprint> comparator) {
+    List<ContentFootprint> sorted = new ArrayList<ContentFootprint>();
+    for (ContentFootprint footprint : footprints) {
+      sorted.add(footprint);
+    }
+    Collections.sort(sorted, Collections.reverseOrder(comparator));
+    return sorted;
+  }
+
+  /**
+   * Versions and size of a content, or of all the contents of a site.
+   */
+  private static class ContentFootprint {
+    private final String path;
+    private int versions;
+    private long size;
+    private int contents = 1;
+    private int flagged;
+
+    ContentFootprint(String path) {
+      this.path = path;
+    }
+  }
+
+  private class Report {
+    private final String workspace;
+    private final String rootPath;
+
+    private final PriorityQueue<ContentFootprint> topBySize = new PriorityQueue<ContentFootprint>(topSize + 1, BY_SIZE);
+    private final PriorityQueue<ContentFootprint> topByVersions = new PriorityQueue<ContentFootprint>(topSize + 1, BY_VERSIONS);
+    private final PriorityQueue<ContentFootprint> flagged = new PriorityQueue<ContentFootprint>(topSize + 1, BY_VERSIONS);
+    private final PriorityQueue<ContentFootprint> orphans = new PriorityQueue<ContentFootprint>(topSize + 1, BY_SIZE);
+    private final Map<String, ContentFootprint> sites = new TreeMap<String, ContentFootprint>();
+
+    private long contents;
+    private long versions;
+    private long size;
+    private long flaggedContents;
+    private long pendingContents;
+    private long orphanHistories;
+    private long orphanVersions;
+    private long orphanSize;
+    private long failures;
+
+    Report(String workspace, String rootPath) {
+      this.workspace = workspace;
+      this.rootPath = rootPath;
+    }
+
+    synchronized void add(ContentFootprint footprint, boolean pending) {
+      contents++;
+      versions += footprint.versions;
+      size += footprint.size;
+      if (pending) {
+        // Obsolete versions not deleted yet by the background pruner
+        pendingContents++;
+      } else if (footprint.versions > expectedVersions) {
+        footprint.flagged = 1;
+        flaggedContents++;
+        addTop(flagged, footprint);
+      }
+      addTop(topBySize, footprint);
+      addTop(topByVersions, footprint);
+
+      String siteName = getSite(footprint.path);
+      ContentFootprint site = sites.get(siteName);
+      if (site == null) {
+        site = new ContentFootprint(siteName);
+        site.contents = 0;
+        sites.put(siteName, site);
+      }
+      site.contents++;
+      site.versions += footprint.versions;
+      site.size += footprint.size;
+      site.flagged += footprint.flagged;
+    }
+
+    synchronized void addOrphan(ContentFootprint footprint) {
+      orphanHistories++;
+      orphanVersions += footprint.versions;
+      orphanSize += footprint.size;
+      addTop(orphans, footprint);
+    }
+
+    synchronized void addFailure() {
+      failures++;
+    }
+
+    private void addTop(PriorityQueue<ContentFootprint> top, ContentFootprint footprint) {
+      top.add(footprint);
+      if (top.size() > topSize) {
+        top.poll();
+      }
+    }
+
+    synchronized String getSummary() {
+      if (workspace == null) {
+        return "No analysis done";
+      }
+      return "path=" + workspace + ":" + rootPath + ", contents=" + contents + ", versions=" + versions + ", size=" + size + ", flagged=" + flaggedContents
+          + ", pending=" + pendingContents + ", orphanHistories=" + orphanHistories + ", orphanVersions=" + orphanVersions + ", orphanSize=" + orphanSize
+          + ", failures=" + failures;
+    }
+
+    synchronized String getTopContents(Comparator<ContentFootprint> comparator) {
+      List<ContentFootprint> candidates = new ArrayList<ContentFootprint>(comparator == BY_SIZE ? topBySize : topByVersions);
+      return toCSV(sortDescending(candidates, comparator), "path");
+    }
+
+    synchronized String getSites(Comparator<ContentFootprint> comparator) {
+      return toCSV(sortDescending(sites.values(), comparator), "site");
+    }
+
+    synchronized String getFlaggedContents() {
+      return toCSV(sortDescending(flagged, BY_VERSIONS), "path");
+    }
+
+    synchronized String getOrphanHistories() {
+      return toCSV(sortDescending(orphans, BY_SIZE), "path");
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package org.exoplatform.addon.publication;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.lifecycle.AuthoringPublicationPlugin;
+import org.exoplatform.addon.publication.service.ActivityCoalescer;
+import org.exoplatform.addon.publication.service.NavigationUriIndex;
+import org.exoplatform.addon.publication.service.NodeLockManager;
+import org.exoplatform.addon.publication.service.PublicationAuditLog;
+import org.exoplatform.addon.publication.service.PublicationEventDispatcher;
+import org.exoplatform.addon.publication.service.PublicationStateIndex;
+import org.exoplatform.addon.publication.service.PublicationStatistics;
+import org.exoplatform.addon.publication.service.VersionHistoryPruner;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.StandaloneContainer;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cms.CmsService;
+import org.exoplatform.services.cms.jcrext.activity.ActivityCommonService;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.listener.ListenerService;
+import org.exoplatform.services.resources.ResourceBundleService;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.wcm.extensions.publication.impl.PublicationManagerImpl;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.Lifecycle;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.impl.LifecyclesConfig.State;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Standalone eXo container with an in-memory JCR repository and stubbed
+ * portal and ECMS services, shared by the tests of a JVM.
+ */
+public class TestEnvironment {
+
+  public static final String WORKSPACE = "collaboration";
+  public static final String USER_ID = "john";
+
+  /** Lifecycle with the default states and a custom review state */
+  public static final String LIFECYCLE_NAME = "testLifecycle";
+  /** Lifecycle without the custom review state */
+  public static final String RESTRICTED_LIFECYCLE_NAME = "restrictedLifecycle";
+  public static final String REVIEW_STATE = "review";
+
+  private static final String PUBLICATION_LIFECYCLE_PROP = "publication:lifecycle";
+  private static final long WAIT_INTERVAL = 50;
+
+  private static TestEnvironment instance;
+
+  private final StandaloneContainer container;
+  private final RepositoryService repositoryService;
+  private final ListenerService listenerService;
+  private final CacheService cacheService;
+  private final PublicationManagerImpl publicationManager;
+
+  /**
+   * Condition polled by {@link TestEnvironment#waitFor(Condition, long)}.
+   */
+  public interface Condition {
+    boolean isMet() throws Exception;
+  }
+
+  private TestEnvironment() throws Exception {
+    StandaloneContainer.addConfigurationURL(TestEnvironment.class.getResource("/conf/test/configuration.xml").toString());
+    container = StandaloneContainer.getInstance();
+    ExoContainerContext.setCurrentContainer(container);
+
+    repositoryService = (RepositoryService) container.getComponentInstanceOfType(RepositoryService.class);
+    listenerService = (ListenerService) container.getComponentInstanceOfType(ListenerService.class);
+    cacheService = (CacheService) container.getComponentInstanceOfType(CacheService.class);
+
+    publicationManager = createPublicationManager();
+    container.registerComponentInstance(CmsService.class, mock(CmsService.class));
+    container.registerComponentInstance(PublicationManagerImpl.class, publicationManager);
+  }
+
+  public static synchronized TestEnvironment getInstance() throws Exception {
+    if (instance == null) {
+      instance = new TestEnvironment();
+    }
+    ExoContainerContext.setCurrentContainer(instance.container);
+    ConversationState.setCurrent(new ConversationState(new Identity(USER_ID)));
+    return instance;
+  }
+
+  /**
+   * Creates a plugin wired to the services of the environment. Events are
+   * broadcasted synchronously, obsolete versions are deleted inline and the
+   * state index is disabled.
+   *
+   * @param pluginParams
+   *          the parameters of the plugin, null for the defaults
+   * @return the plugin
+   */
+  public AuthoringPublicationPlugin createPlugin(InitParams pluginParams) {
+    ExoContainerContext containerContext = new ExoContainerContext(container);
+    PublicationEventDispatcher eventDispatcher = new PublicationEventDispatcher(repositoryService, containerContext, null);
+    VersionHistoryPruner versionHistoryPruner = new VersionHistoryPruner(repositoryService, createParams(VersionHistoryPruner.ENABLED_PARAM, "false"));
+    NavigationUriIndex navigationUriIndex = new NavigationUriIndex(mock(UserPortalConfigService.class), listenerService, cacheService);
+    // Not started: audit entries are ignored
+    PublicationAuditLog auditLog = new PublicationAuditLog(repositoryService, containerContext, null);
+    ActivityCoalescer activityCoalescer = new ActivityCoalescer(listenerService, repositoryService, containerContext, null);
+    PublicationStateIndex stateIndex = new PublicationStateIndex(repositoryService, publicationManager, containerContext, null);
+    return new AuthoringPublicationPlugin(listenerService, mock(ActivityCommonService.class), mock(ResourceBundleService.class), cacheService,
+        eventDispatcher, versionHistoryPruner, navigationUriIndex, new PublicationStatistics(null), new NodeLockManager(repositoryService, null),
+        auditLog, activityCoalescer, stateIndex, pluginParams);
+  }
+
+  public Session openSession() throws Exception {
+    return repositoryService.getCurrentRepository().getSystemSession(WORKSPACE);
+  }
+
+  /**
+   * Gets a folder, creating it and its missing ancestors.
+   *
+   * @param session
+   *          the session
+   * @param path
+   *          the absolute path of the folder
+   * @return the folder
+   * @throws Exception
+   *           if the folder can't be created
+   */
+  public Node getFolder(Session session, String path) throws Exception {
+    Node folder = session.getRootNode();
+    for (String name : path.substring(1).split("/")) {
+      folder = folder.hasNode(name) ? folder.getNode(name) : folder.addNode(name, "nt:unstructured");
+    }
+    session.save();
+    return folder;
+  }
+
+  /**
+   * Creates a saved content enrolled in a lifecycle.
+   *
+   * @param folder
+   *          the parent folder
+   * @param name
+   *          the content name
+   * @param lifecycleName
+   *          the lifecycle of the content
+   * @param state
+   *          the current state of the content
+   * @return the content node
+   * @throws Exception
+   *           if the node can't be created
+   */
+  public Node createContent(Node folder, String name, String lifecycleName, String state) throws Exception {
+    Node node = folder.addNode(name, "nt:unstructured");
+    node.addMixin("mix:referenceable");
+    node.setProperty(PUBLICATION_LIFECYCLE_PROP, lifecycleName);
+    node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, state);
+    node.setProperty("exo:text", "Content of " + name);
+    folder.getSession().save();
+    return node;
+  }
+
+  public StandaloneContainer getContainer() {
+    return container;
+  }
+
+  public RepositoryService getRepositoryService() {
+    return repositoryService;
+  }
+
+  public PublicationManagerImpl getPublicationManager() {
+    return publicationManager;
+  }
+
+  public static InitParams createParams(String... namesAndValues) {
+    InitParams params = new InitParams();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      ValueParam valueParam = new ValueParam();
+      valueParam.setName(namesAndValues[i]);
+      valueParam.setValue(namesAndValues[i + 1]);
+      params.addParameter(valueParam);
+    }
+    return params;
+  }
+
+  /**
+   * Waits until a condition is met.
+   *
+   * @param condition
+   *          the condition
+   * @param timeout
+   *          the maximum wait time in milliseconds
+   * @return true if the condition has been met before the timeout
+   * @throws Exception
+   *           if the condition can't be evaluated
+   */
+  public static boolean waitFor(Condition condition, long timeout) throws Exception {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!condition.isMet()) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(WAIT_INTERVAL);
+    }
+    return true;
+  }
+
+  private static PublicationManagerImpl createPublicationManager() {
+    final Map<String, Lifecycle> lifecycles = new HashMap<String, Lifecycle>();
+    lifecycles.put(LIFECYCLE_NAME, createLifecycle(LIFECYCLE_NAME, PublicationDefaultStates.DRAFT, PublicationDefaultStates.PENDING, REVIEW_STATE,
+                                                   PublicationDefaultStates.PUBLISHED));
+    lifecycles.put(RESTRICTED_LIFECYCLE_NAME, createLifecycle(RESTRICTED_LIFECYCLE_NAME, PublicationDefaultStates.DRAFT, PublicationDefaultStates.PUBLISHED));
+
+    PublicationManagerImpl publicationManager = mock(PublicationManagerImpl.class);
+    when(publicationManager.getLifecycles()).thenReturn(new ArrayList<Lifecycle>(lifecycles.values()));
+    when(publicationManager.getLifecycle(anyString())).thenAnswer(new Answer<Lifecycle>() {
+      public Lifecycle answer(InvocationOnMock invocation) throws Throwable {
+        return lifecycles.get(invocation.getArguments()[0]);
+      }
+    });
+    return publicationManager;
+  }
+
+  private static Lifecycle createLifecycle(String name, String... stateNames) {
+    List<State> states = new ArrayList<State>();
+    for (String stateName : stateNames) {
+      State state = new State();
+      state.setState(stateName);
+      states.add(state);
+    }
+    Lifecycle lifecycle = new Lifecycle();
+    lifecycle.setName(name);
+    lifecycle.setPublicationPlugin(AuthoringPublicationConstant.LIFECYCLE_NAME);
+    lifecycle.setStates(states);
+    return lifecycle;
+  }
+}
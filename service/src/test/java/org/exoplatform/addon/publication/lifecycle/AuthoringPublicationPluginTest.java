@@ -0,0 +1,125 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AuthoringPublicationPluginTest {
+
+  private static final String LAST_USER_PROP = "publication:lastUser";
+  private static final String SKIP_UNCHANGED_PUBLISH_PARAM = "publish.skip.unchanged";
+
+  private TestEnvironment environment;
+  private Session session;
+  private Node folder;
+
+  @Before
+  public void setUp() throws Exception {
+    environment = TestEnvironment.getInstance();
+    session = environment.openSession();
+    folder = environment.getFolder(session, "/pluginTest");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testChangeStatesPartialFailure() throws Exception {
+    AuthoringPublicationPlugin plugin = environment.createPlugin(null);
+    Node first = createContent("batchFirst", TestEnvironment.LIFECYCLE_NAME);
+    // The review state isn't part of the lifecycle of this node
+    Node rejected = createContent("batchRejected", TestEnvironment.RESTRICTED_LIFECYCLE_NAME);
+    Node last = createContent("batchLast", TestEnvironment.LIFECYCLE_NAME);
+
+    BatchStateChangeResult result = plugin.changeStates(Arrays.asList(first, rejected, last), TestEnvironment.REVIEW_STATE,
+                                                        new HashMap<String, String>());
+
+    assertFalse(result.isSuccessful());
+    assertEquals(Arrays.asList(first.getPath(), last.getPath()), result.getSucceeded());
+    assertEquals(Collections.singleton(rejected.getPath()), result.getFailures().keySet());
+    assertTrue(result.getFailures().get(rejected.getPath()) instanceof IllegalArgumentException);
+
+    // Changes of the other nodes are saved, the failed one is left unchanged
+    Session otherSession = environment.openSession();
+    try {
+      assertEquals(TestEnvironment.USER_ID, ((Node) otherSession.getItem(first.getPath())).getProperty(LAST_USER_PROP).getString());
+      assertEquals(TestEnvironment.USER_ID, ((Node) otherSession.getItem(last.getPath())).getProperty(LAST_USER_PROP).getString());
+      assertFalse(((Node) otherSession.getItem(rejected.getPath())).hasProperty(LAST_USER_PROP));
+    } finally {
+      otherSession.logout();
+    }
+    assertFalse(session.hasPendingChanges());
+  }
+
+  @Test
+  public void testUnchangedContentPublicationSkipped() throws Exception {
+    AuthoringPublicationPlugin plugin = environment.createPlugin(TestEnvironment.createParams(SKIP_UNCHANGED_PUBLISH_PARAM, "true"));
+    Node node = createContent("unchanged", TestEnvironment.LIFECYCLE_NAME);
+    changeState(plugin, node, PublicationDefaultStates.PUBLISHED);
+    String liveRevision = getLiveRevision(node);
+    assertTrue(node.isNodeType(ContentFingerprint.FINGERPRINT_MIXIN));
+
+    changeState(plugin, node, PublicationDefaultStates.DRAFT);
+    changeState(plugin, node, PublicationDefaultStates.PUBLISHED);
+    assertEquals(PublicationDefaultStates.PUBLISHED, node.getProperty(AuthoringPublicationConstant.CURRENT_STATE).getString());
+    assertEquals("The live version of an unchanged content is kept", liveRevision, getLiveRevision(node));
+
+    node.setProperty("exo:text", "Changed");
+    session.save();
+    changeState(plugin, node, PublicationDefaultStates.DRAFT);
+    changeState(plugin, node, PublicationDefaultStates.PUBLISHED);
+    assertFalse("A changed content gets a new live version", liveRevision.equals(getLiveRevision(node)));
+  }
+
+  @Test
+  public void testPublicationWithoutFingerprintClearsIt() throws Exception {
+    AuthoringPublicationPlugin skippingPlugin = environment.createPlugin(TestEnvironment.createParams(SKIP_UNCHANGED_PUBLISH_PARAM, "true"));
+    AuthoringPublicationPlugin plugin = environment.createPlugin(null);
+    Node node = createContent("cleared", TestEnvironment.LIFECYCLE_NAME);
+    changeState(skippingPlugin, node, PublicationDefaultStates.PUBLISHED);
+
+    // Published without computing the fingerprint of the new live version
+    changeState(plugin, node, PublicationDefaultStates.DRAFT);
+    node.setProperty("exo:text", "Changed");
+    session.save();
+    changeState(plugin, node, PublicationDefaultStates.PUBLISHED);
+    assertFalse(node.isNodeType(ContentFingerprint.FINGERPRINT_MIXIN));
+    String liveRevision = getLiveRevision(node);
+
+    // The stale fingerprint of the first version can't match anymore
+    changeState(skippingPlugin, node, PublicationDefaultStates.DRAFT);
+    node.setProperty("exo:text", "Content of cleared");
+    session.save();
+    changeState(skippingPlugin, node, PublicationDefaultStates.PUBLISHED);
+    assertFalse(liveRevision.equals(getLiveRevision(node)));
+    assertTrue(node.isNodeType(ContentFingerprint.FINGERPRINT_MIXIN));
+  }
+
+  private Node createContent(String name, String lifecycleName) throws Exception {
+    return environment.createContent(folder, name, lifecycleName, PublicationDefaultStates.DRAFT);
+  }
+
+  private static void changeState(AuthoringPublicationPlugin plugin, Node node, String state) throws Exception {
+    plugin.changeState(node, state, new HashMap<String, String>());
+  }
+
+  private static String getLiveRevision(Node node) throws Exception {
+    return node.getProperty(AuthoringPublicationConstant.LIVE_REVISION_PROP).getString();
+  }
+}
@@ -0,0 +1,89 @@
+package org.exoplatform.addon.publication.lifecycle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.exoplatform.services.wcm.extensions.publication.lifecycle.authoring.AuthoringPublicationConstant;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentFingerprintTest {
+
+  private TestEnvironment environment;
+  private Session session;
+  private Node folder;
+
+  @Before
+  public void setUp() throws Exception {
+    environment = TestEnvironment.getInstance();
+    session = environment.openSession();
+    folder = environment.getFolder(session, "/fingerprintTest");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testMetadataLeftOut() throws Exception {
+    Node node = createContent("metadata");
+    String fingerprint = ContentFingerprint.compute(node).getValue();
+
+    node.setProperty(AuthoringPublicationConstant.CURRENT_STATE, PublicationDefaultStates.PUBLISHED);
+    node.setProperty("exo:lastModifier", TestEnvironment.USER_ID);
+    session.save();
+
+    assertEquals(fingerprint, ContentFingerprint.compute(node).getValue());
+  }
+
+  @Test
+  public void testContentChangesDetected() throws Exception {
+    Node node = createContent("content");
+    String fingerprint = ContentFingerprint.compute(node).getValue();
+
+    node.setProperty("exo:text", "Changed");
+    session.save();
+    String changedFingerprint = ContentFingerprint.compute(node).getValue();
+    assertFalse(fingerprint.equals(changedFingerprint));
+
+    node.getNode("child").setProperty("exo:title", "Changed");
+    session.save();
+    assertFalse(changedFingerprint.equals(ContentFingerprint.compute(node).getValue()));
+  }
+
+  @Test
+  public void testLiveFingerprintStoredAndCleared() throws Exception {
+    Node node = createContent("live");
+    ContentFingerprint fingerprint = ContentFingerprint.compute(node);
+    ContentFingerprint.setLiveFingerprint(node, fingerprint);
+    session.save();
+    assertTrue(node.isNodeType(ContentFingerprint.FINGERPRINT_MIXIN));
+    assertEquals(fingerprint.getValue(), ContentFingerprint.getLiveFingerprint(node));
+
+    // Unknown fingerprint: the stale one must not be compared anymore
+    ContentFingerprint.setLiveFingerprint(node, null);
+    session.save();
+    assertFalse(node.isNodeType(ContentFingerprint.FINGERPRINT_MIXIN));
+    assertNull(ContentFingerprint.getLiveFingerprint(node));
+
+    // Clearing a node without fingerprint is a no-op
+    ContentFingerprint.setLiveFingerprint(node, null);
+    assertFalse(session.hasPendingChanges());
+  }
+
+  private Node createContent(String name) throws Exception {
+    Node node = environment.createContent(folder, name, TestEnvironment.LIFECYCLE_NAME, PublicationDefaultStates.DRAFT);
+    node.addNode("child", "nt:unstructured").setProperty("exo:title", "Child of " + name);
+    session.save();
+    return node;
+  }
+}
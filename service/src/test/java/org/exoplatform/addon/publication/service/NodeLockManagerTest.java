@@ -0,0 +1,182 @@
+package org.exoplatform.addon.publication.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.lock.LockException;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.junit.Test;
+
+public class NodeLockManagerTest {
+
+  private static final int ITERATIONS = 1000;
+
+  @Test
+  public void testOppositeOrdersDontDeadlock() throws Exception {
+    NodeLockManager lockManager = newLockManager(10000);
+    Node first = mockNode("first");
+    Node second = mockNode("second");
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread forward = lockRepeatedly(lockManager, Arrays.asList(first, second), failure);
+    Thread backward = lockRepeatedly(lockManager, Arrays.asList(second, first), failure);
+    forward.start();
+    backward.start();
+    forward.join(TimeUnit.SECONDS.toMillis(30));
+    backward.join(TimeUnit.SECONDS.toMillis(30));
+
+    assertFalse("Batches locking the same nodes in opposite orders are blocked", forward.isAlive() || backward.isAlive());
+    assertNull(failure.get());
+    assertEquals(2 * ITERATIONS, lockManager.getAcquisitions());
+    assertEquals(0, lockManager.getTimeouts());
+  }
+
+  @Test
+  public void testSameNodeLockedOnce() throws Exception {
+    NodeLockManager lockManager = newLockManager(100);
+    Node node = mockNode("node");
+    NodeLockManager.Locks locks = lockManager.lock(Arrays.asList(node, node));
+    locks.unlock();
+
+    // Locked once, so the single release frees it for other threads
+    assertTrue(tryLockInOtherThread(lockManager, node));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    NodeLockManager lockManager = newLockManager(100);
+    Node node = mockNode("node");
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdLock(lockManager, node, release);
+    try {
+      try {
+        lockManager.lock(Collections.singleton(node));
+        fail("The lock of a node held by another state change must time out");
+      } catch (LockException e) {
+        // Expected
+      }
+      assertEquals(1, lockManager.getTimeouts());
+      assertEquals(1, lockManager.getContentions());
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+    lockManager.lock(Collections.singleton(node)).unlock();
+  }
+
+  @Test
+  public void testTimeoutReleasesAcquiredLocks() throws Exception {
+    NodeLockManager lockManager = newLockManager(100);
+    Node free = mockNode("free");
+    Node held = mockNode("held");
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = holdLock(lockManager, held, release);
+    try {
+      try {
+        lockManager.lock(Arrays.asList(free, held));
+        fail("The lock of a node held by another state change must time out");
+      } catch (LockException e) {
+        // Expected
+      }
+      // The stripe of the free node, possibly taken before the timeout, is released
+      assertTrue(tryLockInOtherThread(lockManager, free));
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+  }
+
+  private static NodeLockManager newLockManager(long timeout) {
+    return new NodeLockManager(null, TestEnvironment.createParams(NodeLockManager.TIMEOUT_PARAM, String.valueOf(timeout)));
+  }
+
+  private static Node mockNode(String uuid) throws Exception {
+    Workspace workspace = mock(Workspace.class);
+    when(workspace.getName()).thenReturn(TestEnvironment.WORKSPACE);
+    Session session = mock(Session.class);
+    when(session.getWorkspace()).thenReturn(workspace);
+    Node node = mock(Node.class);
+    when(node.isNodeType("mix:referenceable")).thenReturn(true);
+    when(node.getUUID()).thenReturn(uuid);
+    when(node.getPath()).thenReturn("/" + uuid);
+    when(node.getSession()).thenReturn(session);
+    return node;
+  }
+
+  private static Thread lockRepeatedly(final NodeLockManager lockManager, final List<Node> nodes, final AtomicReference<Throwable> failure) {
+    return new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < ITERATIONS; i++) {
+            lockManager.lock(nodes).unlock();
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Locks a node in another thread until the latch is released.
+   */
+  private static Thread holdLock(final NodeLockManager lockManager, final Node node, final CountDownLatch release) throws Exception {
+    final CountDownLatch locked = new CountDownLatch(1);
+    Thread holder = new Thread() {
+      @Override
+      public void run() {
+        try {
+          NodeLockManager.Locks locks = lockManager.lock(Collections.singleton(node));
+          try {
+            locked.countDown();
+            release.await();
+          } finally {
+            locks.unlock();
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    holder.start();
+    assertTrue(locked.await(10, TimeUnit.SECONDS));
+    return holder;
+  }
+
+  /**
+   * @return true if another thread could lock the node
+   */
+  private static boolean tryLockInOtherThread(final NodeLockManager lockManager, final Node node) throws Exception {
+    final AtomicReference<Boolean> locked = new AtomicReference<Boolean>(false);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.lock(Collections.singleton(node)).unlock();
+          locked.set(true);
+        } catch (Exception e) {
+          locked.set(false);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    return locked.get();
+  }
+}
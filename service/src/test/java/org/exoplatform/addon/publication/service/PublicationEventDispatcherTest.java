@@ -0,0 +1,148 @@
+package org.exoplatform.addon.publication.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublicationEventDispatcherTest {
+
+  private static final int EVENTS = 100;
+  private static final int NODES = 5;
+
+  private TestEnvironment environment;
+  private Session session;
+  private PublicationEventDispatcher dispatcher;
+
+  /** Sequence numbers of the broadcasted events, by node path */
+  private final Map<String, List<Integer>> broadcasts = new HashMap<String, List<Integer>>();
+
+  @Before
+  public void setUp() throws Exception {
+    environment = TestEnvironment.getInstance();
+    session = environment.openSession();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (dispatcher != null) {
+      dispatcher.stop();
+    }
+    session.logout();
+  }
+
+  @Test
+  public void testEventsOfANodeBroadcastedInOrder() throws Exception {
+    dispatcher = newDispatcher(TestEnvironment.createParams(PublicationEventDispatcher.ASYNC_ENABLED_PARAM, "true",
+                                                            PublicationEventDispatcher.WORKERS_PARAM, "4"));
+    List<Node> nodes = createContents("ordering");
+    for (int i = 0; i < EVENTS; i++) {
+      for (Node node : nodes) {
+        dispatcher.dispatch(node, new RecordingTask(i, 0));
+      }
+    }
+    // Workers drain their queues before stopping
+    dispatcher.stop();
+
+    for (Node node : nodes) {
+      assertEquals(getSequence(EVENTS), broadcasts.get(node.getPath()));
+    }
+    assertEquals(EVENTS * NODES, dispatcher.getDispatchedCount());
+    assertEquals(0, dispatcher.getFailedCount());
+    dispatcher = null;
+  }
+
+  @Test
+  public void testFullQueueBlocksInOrder() throws Exception {
+    dispatcher = newDispatcher(TestEnvironment.createParams(PublicationEventDispatcher.ASYNC_ENABLED_PARAM, "true",
+                                                            PublicationEventDispatcher.WORKERS_PARAM, "1",
+                                                            PublicationEventDispatcher.QUEUE_CAPACITY_PARAM, "1"));
+    Node node = createContents("blocking").get(0);
+    for (int i = 0; i < EVENTS; i++) {
+      // Slow listeners, so that the queue is full
+      dispatcher.dispatch(node, new RecordingTask(i, 1));
+    }
+    dispatcher.stop();
+
+    assertEquals(getSequence(EVENTS), broadcasts.get(node.getPath()));
+    assertEquals(0, dispatcher.getCallerRunsCount());
+    assertEquals(0, dispatcher.getDiscardedCount());
+    dispatcher = null;
+  }
+
+  @Test
+  public void testSynchronousWhenNotStarted() throws Exception {
+    PublicationEventDispatcher stoppedDispatcher = new PublicationEventDispatcher(environment.getRepositoryService(),
+                                                                                  new ExoContainerContext(environment.getContainer()), null);
+    Node node = createContents("synchronous").get(0);
+    stoppedDispatcher.dispatch(node, new RecordingTask(0, 0));
+
+    // Broadcasted before dispatch returns
+    assertEquals(getSequence(1), broadcasts.get(node.getPath()));
+    assertEquals(0, stoppedDispatcher.getDispatchedCount());
+  }
+
+  private PublicationEventDispatcher newDispatcher(InitParams params) {
+    PublicationEventDispatcher newDispatcher = new PublicationEventDispatcher(environment.getRepositoryService(),
+                                                                              new ExoContainerContext(environment.getContainer()), params);
+    newDispatcher.start();
+    return newDispatcher;
+  }
+
+  private List<Node> createContents(String folderName) throws Exception {
+    Node folder = environment.getFolder(session, "/dispatcherTest/" + folderName);
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < NODES; i++) {
+      nodes.add(environment.createContent(folder, "content" + i, TestEnvironment.LIFECYCLE_NAME, PublicationDefaultStates.DRAFT));
+    }
+    return nodes;
+  }
+
+  private static List<Integer> getSequence(int length) {
+    List<Integer> sequence = new ArrayList<Integer>();
+    for (int i = 0; i < length; i++) {
+      sequence.add(i);
+    }
+    return sequence;
+  }
+
+  /**
+   * Records the sequence number of the event for the broadcasted node.
+   */
+  private class RecordingTask implements PublicationEventDispatcher.EventTask {
+    private final int sequence;
+    private final long delay;
+
+    RecordingTask(int sequence, long delay) {
+      this.sequence = sequence;
+      this.delay = delay;
+    }
+
+    public void broadcast(Node node) throws Exception {
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+      synchronized (broadcasts) {
+        List<Integer> sequences = broadcasts.get(node.getPath());
+        if (sequences == null) {
+          sequences = new ArrayList<Integer>();
+          broadcasts.put(node.getPath(), sequences);
+        }
+        sequences.add(sequence);
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package org.exoplatform.addon.publication.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublicationStateIndexTest {
+
+  private static final long TIMEOUT = 30000;
+  private static final String PUBLISHED = PublicationDefaultStates.PUBLISHED;
+
+  private TestEnvironment environment;
+  private Session session;
+  private PublicationStateIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    environment = TestEnvironment.getInstance();
+    session = environment.openSession();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (index != null) {
+      index.stop();
+    }
+    session.logout();
+  }
+
+  @Test
+  public void testPathPrefixMatchesWholeNames() throws Exception {
+    String root = "/stateIndexPrefix";
+    Node acme = environment.getFolder(session, root + "/acme");
+    Node a = createContent(acme, "a", PUBLISHED);
+    Node ab = createContent(acme, "ab", PUBLISHED);
+    Node draft = createContent(acme, "draft", PublicationDefaultStates.DRAFT);
+    Node news = createContent(environment.getFolder(session, root + "/acme/news"), "news", PUBLISHED);
+    Node other = createContent(environment.getFolder(session, root + "/acme2"), "other", PUBLISHED);
+    startIndex(root, a, ab, draft, news, other);
+
+    assertPaths(root + "/acme", a, ab, news);
+    assertPaths(root + "/acme/", a, ab, news);
+    assertPaths(root + "/acme2", other);
+    assertPaths(root + "/acm");
+    // A content path only matches the content and its descendants
+    assertPaths(root + "/acme/a", a);
+    assertPaths(null, a, ab, news, other);
+    assertEquals(4, index.count(PUBLISHED, root));
+    assertEquals(1, index.count(PublicationDefaultStates.DRAFT, root + "/acme"));
+    assertEquals(0, index.count(PublicationDefaultStates.DRAFT, root + "/acme2"));
+  }
+
+  @Test
+  public void testRemovedContentsUnlisted() throws Exception {
+    String root = "/stateIndexRemoval";
+    Node kept = createContent(environment.getFolder(session, root + "/kept"), "kept", PUBLISHED);
+    final Node removed = createContent(environment.getFolder(session, root + "/removed"), "removed", PUBLISHED);
+    final Node nested = createContent(environment.getFolder(session, root + "/removed/nested"), "nested", PUBLISHED);
+    startIndex(root, kept, removed, nested);
+    final String removedUUID = removed.getUUID();
+    final String nestedUUID = nested.getUUID();
+
+    session.getItem(root + "/removed").remove();
+    session.save();
+
+    assertTrue("Removed contents are still indexed", TestEnvironment.waitFor(new TestEnvironment.Condition() {
+      public boolean isMet() {
+        return index.getState(removedUUID) == null && index.getState(nestedUUID) == null;
+      }
+    }, TIMEOUT));
+    assertPaths(root, kept);
+    assertEquals(1, index.getSize());
+    assertEquals(2, index.getRemovals());
+
+    // Freed slots are reused
+    Node added = createContent(environment.getFolder(session, root + "/kept"), "added", PUBLISHED);
+    index.update(added);
+    assertPaths(root, kept, added);
+    assertEquals(PUBLISHED, index.getState(kept.getUUID()));
+  }
+
+  @Test
+  public void testMovedContentListedAtNewPath() throws Exception {
+    String root = "/stateIndexMove";
+    Node content = createContent(environment.getFolder(session, root + "/source"), "content", PUBLISHED);
+    environment.getFolder(session, root + "/target");
+    startIndex(root, content);
+
+    session.move(root + "/source/content", root + "/target/content");
+    session.save();
+
+    final String targetPath = root + "/target";
+    assertTrue("Moved content isn't indexed at its new path", TestEnvironment.waitFor(new TestEnvironment.Condition() {
+      public boolean isMet() {
+        return index.count(PUBLISHED, targetPath) == 1;
+      }
+    }, TIMEOUT));
+    assertPaths(root + "/source");
+    assertEquals(PUBLISHED, index.getState(content.getUUID()));
+  }
+
+  @Test
+  public void testContentMovedOutOfScanPathUnlisted() throws Exception {
+    String root = "/stateIndexMoveOut";
+    Node content = createContent(environment.getFolder(session, root + "/source"), "content", PUBLISHED);
+    environment.getFolder(session, "/stateIndexOutside");
+    startIndex(root, content);
+    final String uuid = content.getUUID();
+
+    session.move(root + "/source/content", "/stateIndexOutside/content");
+    session.save();
+
+    assertTrue("Content moved out of the scanned path is still indexed", TestEnvironment.waitFor(new TestEnvironment.Condition() {
+      public boolean isMet() {
+        return index.getState(uuid) == null;
+      }
+    }, TIMEOUT));
+    assertEquals(0, index.count(PUBLISHED, null));
+  }
+
+  private Node createContent(Node folder, String name, String state) throws Exception {
+    return environment.createContent(folder, name, TestEnvironment.LIFECYCLE_NAME, state);
+  }
+
+  /**
+   * Starts an index scanning a path, then indexes the contents whether or not
+   * the scan found them.
+   */
+  private void startIndex(String scanPath, Node... contents) throws Exception {
+    index = new PublicationStateIndex(environment.getRepositoryService(), environment.getPublicationManager(),
+                                      new ExoContainerContext(environment.getContainer()),
+                                      TestEnvironment.createParams(PublicationStateIndex.ENABLED_PARAM, "true", PublicationStateIndex.SCAN_PATH_PARAM,
+                                                                   scanPath));
+    index.start();
+    assertTrue("The index isn't built", TestEnvironment.waitFor(new TestEnvironment.Condition() {
+      public boolean isMet() {
+        return index.isReady();
+      }
+    }, TIMEOUT));
+    for (Node content : contents) {
+      index.update(content);
+    }
+  }
+
+  private void assertPaths(String pathPrefix, Node... expectedContents) throws Exception {
+    Set<String> expectedPaths = new HashSet<String>();
+    for (Node content : expectedContents) {
+      expectedPaths.add(content.getPath());
+    }
+    assertEquals(expectedPaths, new HashSet<String>(index.getPaths(PUBLISHED, pathPrefix, 0, 100)));
+  }
+}
@@ -0,0 +1,132 @@
+package org.exoplatform.addon.publication.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.version.VersionHistory;
+import javax.jcr.version.VersionIterator;
+
+import org.exoplatform.addon.publication.TestEnvironment;
+import org.exoplatform.services.wcm.publication.PublicationDefaultStates;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VersionHistoryPrunerTest {
+
+  private static final int VERSIONS = 4;
+  private static final long TIMEOUT = 30000;
+
+  private TestEnvironment environment;
+  private Session session;
+  private VersionHistoryPruner pruner;
+
+  @Before
+  public void setUp() throws Exception {
+    environment = TestEnvironment.getInstance();
+    session = environment.openSession();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (pruner != null) {
+      pruner.stop();
+    }
+    session.logout();
+  }
+
+  @Test
+  public void testRequestPrunedAfterRestart() throws Exception {
+    Node node = createVersionedContent("restart");
+    String historyUUID = node.getVersionHistory().getUUID();
+
+    // Scheduled by a pruner stopped before pruning it
+    newPruner("pruningRestart").schedule(TestEnvironment.WORKSPACE, historyUUID, Collections.<String> emptySet());
+    assertTrue(getRequestsNode("pruningRestart").hasNode(historyUUID));
+
+    pruner = newPruner("pruningRestart");
+    pruner.start();
+    waitForPruning();
+
+    assertEquals(1, pruner.getHistoriesPruned());
+    assertEquals(VERSIONS - 1, pruner.getVersionsRemoved());
+    // The root version and the base version of the node are kept
+    assertEquals(2, countVersions(node.getVersionHistory()));
+    assertFalse(getRequestsNode("pruningRestart").hasNode(historyUUID));
+  }
+
+  @Test
+  public void testRequestOfRemovedHistoryDropped() throws Exception {
+    newPruner("pruningRemoved").schedule(TestEnvironment.WORKSPACE, "removedHistory", Collections.<String> emptySet());
+
+    pruner = newPruner("pruningRemoved");
+    pruner.start();
+    waitForPruning();
+
+    assertEquals(0, pruner.getHistoriesFailed());
+    assertFalse(getRequestsNode("pruningRemoved").hasNode("removedHistory"));
+  }
+
+  @Test
+  public void testDisabledPrunerPrunesLeftRequests() throws Exception {
+    Node node = createVersionedContent("disabled");
+    String historyUUID = node.getVersionHistory().getUUID();
+    newPruner("pruningDisabled").schedule(TestEnvironment.WORKSPACE, historyUUID, Collections.<String> emptySet());
+
+    pruner = new VersionHistoryPruner(environment.getRepositoryService(), TestEnvironment.createParams(VersionHistoryPruner.ENABLED_PARAM, "false",
+                                                                                                       VersionHistoryPruner.PERIOD_PARAM, "100",
+                                                                                                       VersionHistoryPruner.PATH_PARAM, "pruningDisabled"));
+    pruner.start();
+    waitForPruning();
+
+    assertEquals(2, countVersions(node.getVersionHistory()));
+  }
+
+  private VersionHistoryPruner newPruner(String requestsPath) {
+    return new VersionHistoryPruner(environment.getRepositoryService(), TestEnvironment.createParams(VersionHistoryPruner.PERIOD_PARAM, "100",
+                                                                                                     VersionHistoryPruner.PATH_PARAM, requestsPath));
+  }
+
+  private void waitForPruning() throws Exception {
+    assertTrue("Version histories are still to be pruned", TestEnvironment.waitFor(new TestEnvironment.Condition() {
+      public boolean isMet() {
+        return pruner.getPendingHistories() == 0;
+      }
+    }, TIMEOUT));
+    session.refresh(false);
+  }
+
+  private Node getRequestsNode(String requestsPath) throws Exception {
+    session.refresh(false);
+    return session.getRootNode().getNode(requestsPath);
+  }
+
+  private Node createVersionedContent(String name) throws Exception {
+    Node node = environment.createContent(environment.getFolder(session, "/prunerTest"), name, TestEnvironment.LIFECYCLE_NAME,
+                                          PublicationDefaultStates.DRAFT);
+    node.addMixin("mix:versionable");
+    session.save();
+    for (int i = 0; i < VERSIONS; i++) {
+      node.setProperty("exo:text", "Version " + i);
+      session.save();
+      node.checkin();
+      node.checkout();
+    }
+    return node;
+  }
+
+  private static int countVersions(VersionHistory versionHistory) throws Exception {
+    int count = 0;
+    VersionIterator versions = versionHistory.getAllVersions();
+    while (versions.hasNext()) {
+      versions.nextVersion();
+      count++;
+    }
+    return count;
+  }
+}